@@ -0,0 +1,118 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.opencrx;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control for a class of operations. At most permits requests
+ * execute concurrently, at most queueSize requests wait for a permit and
+ * a waiting request is rejected after timeout milliseconds.
+ * 
+ * Nested calls, e.g. readAsTree() calling listSubprojects(), run on the
+ * permit of the outermost call.
+ *
+ */
+class Bulkhead {
+
+	private static final ThreadLocal<Bulkhead> admitted = new ThreadLocal<Bulkhead>();
+
+	private final String name;
+	private final Semaphore permits;
+	private final int queueSize;
+	private final long timeout;
+	private final int retryAfter;
+	private final AtomicInteger queued = new AtomicInteger();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param name
+	 * @param permits
+	 * @param queueSize
+	 * @param timeout in milliseconds
+	 * @param retryAfter in seconds
+	 */
+	public Bulkhead(
+		String name,
+		int permits,
+		int queueSize,
+		long timeout,
+		int retryAfter
+	) {
+		this.name = name;
+		this.permits = new Semaphore(permits, true);
+		this.queueSize = queueSize;
+		this.timeout = timeout;
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * Acquire a permit for the current thread.
+	 * 
+	 * @return true if a permit was acquired, false if the thread already holds one
+	 * @throws ServiceOverloadedException if no permit is available in time
+	 */
+	public boolean acquire(
+	) throws ServiceOverloadedException {
+		if(admitted.get() != null) {
+			return false;
+		}
+		if(!this.permits.tryAcquire()) {
+			if(this.queued.incrementAndGet() > this.queueSize) {
+				this.queued.decrementAndGet();
+				throw new ServiceOverloadedException(this.name + " operations are overloaded.", this.retryAfter);
+			}
+			boolean acquired = false;
+			try {
+				acquired = this.permits.tryAcquire(this.timeout, TimeUnit.MILLISECONDS);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				this.queued.decrementAndGet();
+			}
+			if(!acquired) {
+				throw new ServiceOverloadedException(this.name + " operations timed out waiting for admission.", this.retryAfter);
+			}
+		}
+		admitted.set(this);
+		return true;
+	}
+
+	/**
+	 * Release the permit acquired by acquire().
+	 * 
+	 * @param acquired the value returned by acquire()
+	 */
+	public void release(
+		boolean acquired
+	) {
+		if(acquired) {
+			admitted.remove();
+			this.permits.release();
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.opencrx;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-company versions for optimistic composite reads. Mutations call
+ * beginWrite() and endWrite() and never wait. A composite read takes the
+ * version with beginRead(), walks the hierarchy and checks with
+ * isUnchanged() that no mutation of the company started or ended in the
+ * meantime, otherwise the caller retries the read.
+ * 
+ * Companies are only kept while a read or a mutation is in progress.
+ * Versions are drawn from one sequence, so a version never repeats after
+ * a company was dropped. The version of a company advances with every
+ * mutation and may also advance without one. Versions and consistency
+ * only cover mutations made through the providers of this JVM, not those
+ * of other nodes or of other openCRX clients. They are not valid across
+ * JVMs or restarts.
+ *
+ */
+class CompanySnapshots {
+
+	private static class Company {
+		long version;
+		int writers = 0;
+		int users = 0;
+	}
+
+	private final Map<String,Company> companies = new HashMap<String,Company>();
+	private final AtomicLong sequence = new AtomicLong();
+
+	private static String key(
+		String compId
+	) {
+		return compId == null ? "" : compId;
+	}
+
+	/**
+	 * Get company and register a user. Must be called synchronized.
+	 * 
+	 * @param compId
+	 * @return
+	 */
+	private Company use(
+		String compId
+	) {
+		Company company = this.companies.get(key(compId));
+		if(company == null) {
+			company = new Company();
+			company.version = this.sequence.get();
+			this.companies.put(key(compId), company);
+		}
+		company.users++;
+		return company;
+	}
+
+	/**
+	 * Unregister a user and drop the company if it has no users left. Must
+	 * be called synchronized.
+	 * 
+	 * @param compId
+	 * @param company
+	 */
+	private void release(
+		String compId,
+		Company company
+	) {
+		if(--company.users == 0) {
+			this.companies.remove(key(compId));
+		}
+	}
+
+	/**
+	 * Begin a composite read. Must be followed by endRead().
+	 * 
+	 * @param compId
+	 * @return the version the read is checked against
+	 */
+	public synchronized long beginRead(
+		String compId
+	) {
+		return this.use(compId).version;
+	}
+
+	/**
+	 * Test whether the company is unchanged since beginRead(), i.e. no
+	 * mutation is in progress and none started or ended since.
+	 * 
+	 * @param compId
+	 * @param version the value returned by beginRead()
+	 * @return
+	 */
+	public synchronized boolean isUnchanged(
+		String compId,
+		long version
+	) {
+		Company company = this.companies.get(key(compId));
+		return company != null && company.writers == 0 && company.version == version;
+	}
+
+	/**
+	 * End a read started with beginRead().
+	 * 
+	 * @param compId
+	 */
+	public synchronized void endRead(
+		String compId
+	) {
+		Company company = this.companies.get(key(compId));
+		if(company != null) {
+			this.release(compId, company);
+		}
+	}
+
+	/**
+	 * Begin a mutation of the company and advance its version. Mutations
+	 * may nest, e.g. for cascading deletes. Must be followed by endWrite().
+	 * 
+	 * @param compId
+	 */
+	public synchronized void beginWrite(
+		String compId
+	) {
+		Company company = this.use(compId);
+		company.writers++;
+		company.version = this.sequence.incrementAndGet();
+	}
+
+	/**
+	 * End a mutation started with beginWrite() and advance the version.
+	 * 
+	 * @param compId
+	 */
+	public synchronized void endWrite(
+		String compId
+	) {
+		Company company = this.companies.get(key(compId));
+		if(company != null) {
+			company.version = this.sequence.incrementAndGet();
+			company.writers--;
+			this.release(compId, company);
+		}
+	}
+
+	/**
+	 * Get current version of company.
+	 * 
+	 * @param compId
+	 * @return
+	 */
+	public synchronized long getVersion(
+		String compId
+	) {
+		Company company = this.companies.get(key(compId));
+		return company == null ? this.sequence.get() : company.version;
+	}
+}
@@ -0,0 +1,232 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.opencrx;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregate counts of a company's project hierarchy. The counts are built
+ * once from the company's projects and then maintained incrementally as
+ * projects and resource refs are created and removed.
+ *
+ */
+class HierarchyAggregates {
+
+	private static class Node {
+		final String id;
+		String parentId;
+		final List<Node> children = new ArrayList<Node>();
+		int resources;
+		int totalSubprojects;
+		int totalResources;
+
+		Node(
+			String id,
+			String parentId,
+			int resources
+		) {
+			this.id = id;
+			this.parentId = parentId;
+			this.resources = resources;
+		}
+	}
+
+	private final Node root;
+	private final Map<String,Node> nodes = new HashMap<String,Node>();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param compId
+	 */
+	public HierarchyAggregates(
+		String compId
+	) {
+		this.root = new Node(compId, null, 0);
+		this.nodes.put(compId, this.root);
+	}
+
+	/**
+	 * Add a project while building. Projects may be added in any order,
+	 * complete() links them once all are added.
+	 * 
+	 * @param id
+	 * @param parentId the parent project or null for a top-level project
+	 * @param resources number of assigned resources
+	 */
+	public void put(
+		String id,
+		String parentId,
+		int resources
+	) {
+		this.nodes.put(id, new Node(id, parentId == null ? this.root.id : parentId, resources));
+	}
+
+	/**
+	 * Link the projects added with put() and compute the totals. Projects
+	 * whose parent is missing, e.g. because it is disabled, are dropped
+	 * together with their subprojects.
+	 */
+	public void complete(
+	) {
+		for(Node node: this.nodes.values()) {
+			if(node != this.root) {
+				Node parent = this.nodes.get(node.parentId);
+				if(parent != null) {
+					parent.children.add(node);
+				}
+			}
+		}
+		this.nodes.clear();
+		this.sum(this.root);
+	}
+
+	private void sum(
+		Node node
+	) {
+		this.nodes.put(node.id, node);
+		node.totalSubprojects = node.children.size();
+		node.totalResources = node.resources;
+		for(Node child: node.children) {
+			this.sum(child);
+			node.totalSubprojects += child.totalSubprojects;
+			node.totalResources += child.totalResources;
+		}
+	}
+
+	/**
+	 * Add the deltas to the totals of node and all its ancestors.
+	 */
+	private void propagate(
+		Node node,
+		int subprojects,
+		int resources
+	) {
+		while(node != null) {
+			node.totalSubprojects += subprojects;
+			node.totalResources += resources;
+			node = node.parentId == null ? null : this.nodes.get(node.parentId);
+		}
+	}
+
+	/**
+	 * A project was created.
+	 * 
+	 * @param parentId the parent project or company
+	 * @param id
+	 * @return false if the parent is unknown, i.e. the aggregates are stale
+	 */
+	public synchronized boolean addProject(
+		String parentId,
+		String id
+	) {
+		Node parent = this.nodes.get(parentId);
+		if(parent == null) {
+			return false;
+		}
+		if(!this.nodes.containsKey(id)) {
+			Node node = new Node(id, parentId, 0);
+			parent.children.add(node);
+			this.nodes.put(id, node);
+			this.propagate(parent, 1, 0);
+		}
+		return true;
+	}
+
+	/**
+	 * A project was removed. Removing an unknown project, e.g. a subproject
+	 * of a project which was removed before, has no effect.
+	 * 
+	 * @param id
+	 */
+	public synchronized void removeProject(
+		String id
+	) {
+		Node node = this.nodes.get(id);
+		if(node == null || node == this.root) {
+			return;
+		}
+		Node parent = this.nodes.get(node.parentId);
+		parent.children.remove(node);
+		this.propagate(parent, -(node.totalSubprojects + 1), -node.totalResources);
+		this.forget(node);
+	}
+
+	private void forget(
+		Node node
+	) {
+		this.nodes.remove(node.id);
+		for(Node child: node.children) {
+			this.forget(child);
+		}
+	}
+
+	/**
+	 * Resource refs were added to or removed from a project.
+	 * 
+	 * @param projId
+	 * @param delta
+	 * @return false if the project is unknown, i.e. the aggregates are stale
+	 */
+	public synchronized boolean addResources(
+		String projId,
+		int delta
+	) {
+		Node node = this.nodes.get(projId);
+		if(node == null) {
+			return false;
+		}
+		node.resources += delta;
+		this.propagate(node, 0, delta);
+		return true;
+	}
+
+	/**
+	 * Get aggregates of all nodes, parents before their children.
+	 * 
+	 * @return
+	 */
+	public synchronized List<ProjectAggregateModel> toModels(
+	) {
+		List<ProjectAggregateModel> models = new ArrayList<ProjectAggregateModel>();
+		List<Node> pending = new ArrayList<Node>();
+		pending.add(this.root);
+		for(int i = 0; i < pending.size(); i++) {
+			Node node = pending.get(i);
+			ProjectAggregateModel model = new ProjectAggregateModel();
+			model.setId(node.id);
+			model.setParentId(node.parentId);
+			model.setSubprojects(node.children.size());
+			model.setTotalSubprojects(node.totalSubprojects);
+			model.setResources(node.resources);
+			model.setTotalResources(node.totalResources);
+			models.add(model);
+			pending.addAll(node.children);
+		}
+		return models;
+	}
+}
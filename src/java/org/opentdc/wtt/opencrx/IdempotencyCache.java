@@ -0,0 +1,212 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.opencrx;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.opentdc.service.exception.InternalServerErrorException;
+import org.opentdc.service.exception.ValidationException;
+
+/**
+ * Bounded, expiring store of created models keyed by the idempotency key
+ * of the create request. A replayed request gets the original model back.
+ * A replay arriving while the original request is still running waits for
+ * its outcome. Reusing a key with a different payload is rejected.
+ *
+ */
+class IdempotencyCache {
+
+	private static class Entry {
+		final long expiresAt;
+		final String payloadHash;
+		Object value;
+
+		Entry(
+			long expiresAt,
+			String payloadHash
+		) {
+			this.expiresAt = expiresAt;
+			this.payloadHash = payloadHash;
+		}
+	}
+
+	private final int maxEntries;
+	private final long timeToLive;
+	private final long waitTimeout;
+	private final LinkedHashMap<String,Entry> entries;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxEntries
+	 * @param timeToLive in milliseconds
+	 * @param waitTimeout in milliseconds
+	 */
+	public IdempotencyCache(
+		int maxEntries,
+		long timeToLive,
+		long waitTimeout
+	) {
+		this.maxEntries = maxEntries;
+		this.timeToLive = timeToLive;
+		this.waitTimeout = waitTimeout;
+		this.entries = new LinkedHashMap<String,Entry>();
+	}
+
+	/**
+	 * Begin a request with the given key. Returns the model created by a
+	 * previous request with the same key or null if the caller owns the key
+	 * and must complete it with end().
+	 *
+	 * @param key the idempotency key or null
+	 * @param payloadHash hash of the request payload, see hash()
+	 * @param type
+	 * @return
+	 * @throws ValidationException if the key was used with a different payload
+	 */
+	public synchronized <T> T begin(
+		String key,
+		String payloadHash,
+		Class<T> type
+	) throws ValidationException {
+		if(key == null || this.maxEntries <= 0) {
+			return null;
+		}
+		long deadline = System.currentTimeMillis() + this.waitTimeout;
+		while(true) {
+			long now = System.currentTimeMillis();
+			Entry entry = this.entries.get(key);
+			if(entry != null && entry.expiresAt <= now) {
+				this.entries.remove(key);
+				entry = null;
+			}
+			if(entry == null) {
+				// Evict only to make room for a new key. Evicting before the
+				// lookup could drop the entry of the key being replayed.
+				this.evict(now);
+				this.entries.put(key, new Entry(now + this.timeToLive, payloadHash));
+				return null;
+			}
+			if(!entry.payloadHash.equals(payloadHash)) {
+				throw new ValidationException("idempotency key <" + key + "> was used with a different payload.");
+			}
+			if(entry.value != null) {
+				if(!type.isInstance(entry.value)) {
+					throw new InternalServerErrorException("idempotency key <" + key + "> is used by a different request.");
+				}
+				return type.cast(entry.value);
+			}
+			if(now >= deadline) {
+				throw new InternalServerErrorException("request with idempotency key <" + key + "> is still in progress.");
+			}
+			try {
+				this.wait(deadline - now);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InternalServerErrorException(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Hash the payload fields of a request.
+	 * 
+	 * @param fields
+	 * @return hex encoded SHA-256 hash
+	 */
+	public static String hash(
+		String... fields
+	) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for(String field: fields) {
+				// Distinguish null from empty and keep field boundaries
+				digest.update(field == null ? (byte)0 : (byte)1);
+				if(field != null) {
+					digest.update(field.getBytes(StandardCharsets.UTF_8));
+				}
+				digest.update((byte)0);
+			}
+			StringBuilder hash = new StringBuilder();
+			for(byte b: digest.digest()) {
+				hash.append(String.format("%02x", b & 0xff));
+			}
+			return hash.toString();
+		} catch(NoSuchAlgorithmException e) {
+			throw new InternalServerErrorException(e.getMessage());
+		}
+	}
+
+	/**
+	 * End a request started with begin(). A null value discards the key so
+	 * that a retry is executed again.
+	 *
+	 * @param key the idempotency key or null
+	 * @param value the created model or null if the request failed
+	 */
+	public synchronized void end(
+		String key,
+		Object value
+	) {
+		if(key == null || this.maxEntries <= 0) {
+			return;
+		}
+		Entry entry = this.entries.get(key);
+		if(entry != null && entry.value == null) {
+			if(value == null) {
+				this.entries.remove(key);
+			} else {
+				entry.value = value;
+			}
+		}
+		this.notifyAll();
+	}
+
+	/**
+	 * Remove expired entries and completed entries exceeding the size limit
+	 * to make room for one more entry. Entries are kept in insertion order,
+	 * i.e. the eldest come first.
+	 *
+	 * @param now
+	 */
+	private void evict(
+		long now
+	) {
+		int excess = this.entries.size() - this.maxEntries + 1;
+		for(Iterator<Map.Entry<String,Entry>> i = this.entries.entrySet().iterator(); i.hasNext(); ) {
+			Entry entry = i.next().getValue();
+			if(entry.expiresAt <= now || (excess > 0 && entry.value != null)) {
+				i.remove();
+				excess--;
+			} else if(excess <= 0) {
+				break;
+			}
+		}
+	}
+}
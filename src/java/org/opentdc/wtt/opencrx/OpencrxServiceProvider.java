@@ -23,11 +23,30 @@
  */
 package org.opentdc.wtt.opencrx;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.jdo.JDOHelper;
@@ -38,14 +57,22 @@ import javax.servlet.http.HttpServletRequest;
 
 import org.opencrx.kernel.account1.jmi1.LegalEntity;
 import org.opencrx.kernel.activity1.cci2.AccountAssignmentActivityGroupQuery;
+import org.opencrx.kernel.activity1.cci2.ActivityLinkToQuery;
 import org.opencrx.kernel.activity1.cci2.ActivityQuery;
+import org.opencrx.kernel.activity1.cci2.ActivityTrackerQuery;
+import org.opencrx.kernel.activity1.cci2.ResourceQuery;
 import org.opencrx.kernel.activity1.jmi1.AccountAssignmentActivityGroup;
 import org.opencrx.kernel.activity1.jmi1.Activity;
+import org.opencrx.kernel.activity1.jmi1.ActivityGroup;
+import org.opencrx.kernel.activity1.jmi1.ActivityGroupAssignment;
+import org.opencrx.kernel.activity1.jmi1.ActivityLinkTo;
 import org.opencrx.kernel.activity1.jmi1.ActivityTracker;
 import org.opencrx.kernel.activity1.jmi1.Resource;
 import org.opencrx.kernel.activity1.jmi1.ResourceAssignment;
+import org.opencrx.kernel.backend.Activities;
 import org.opencrx.kernel.utils.Utils;
 import org.openmdx.base.exception.ServiceException;
+import org.openmdx.base.persistence.cci.PersistenceHelper;
 import org.opentdc.opencrx.AbstractOpencrxServiceProvider;
 import org.opentdc.opencrx.ActivitiesHelper;
 import org.opentdc.service.exception.DuplicateException;
@@ -58,6 +85,9 @@ import org.opentdc.wtt.ProjectTreeNodeModel;
 import org.opentdc.wtt.ResourceRefModel;
 import org.opentdc.wtt.ServiceProvider;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
 /**
  * Wtt service for openCRX.
  *
@@ -65,7 +95,28 @@ import org.opentdc.wtt.ServiceProvider;
 public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider implements ServiceProvider {
 	
 	private static final Logger logger = Logger.getLogger(OpencrxServiceProvider.class.getName());
+	private static final Gson gson = new Gson();
 	
+	public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+	public static final String ARCHIVE_TRACKER_PREFIX = "wtt archive ";
+	public static final String ARCHIVED_RESOURCE_REFS_NAME = "wtt archived resource refs";
+	public static final String ARCHIVED_LINK_MARKER = "[wtt archived] ";
+	// openCRX defines no link type for archived parents, hence RELATES_TO with ARCHIVED_LINK_MARKER
+	public static final short ACTIVITY_LINK_TYPE_ARCHIVED_CHILD_OF = Activities.ActivityLinkType.RELATES_TO.getValue();
+
+	private final IdempotencyCache idempotencyCache;
+	private final Bulkhead heavyOperations;
+	private final Bulkhead lightOperations;
+	private final SingleFlight inFlightReads;
+	// Shared by all providers of this JVM, they all write the same segment
+	private static final CompanySnapshots snapshots = new CompanySnapshots();
+	private final long slowCallThreshold;
+	private final int snapshotAttempts;
+	private final int snapshotRetryAfter;
+	private final ConcurrentMap<String,HierarchyAggregates> aggregates = new ConcurrentHashMap<String,HierarchyAggregates>();
+	private final int archiveChunkSize;
+	private final ScheduledExecutorService archival;
+
 	/**
 	 * Constructor.
 	 * 
@@ -79,6 +130,332 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 		String prefix
 	) throws ServiceException, NamingException {
 		super(context, prefix);
+		this.idempotencyCache = new IdempotencyCache(
+			getIntParameter(context, "wtt.idempotency.maxEntries", 10000),
+			getIntParameter(context, "wtt.idempotency.ttl", 3600) * 1000L,
+			getIntParameter(context, "wtt.idempotency.waitTimeout", 30) * 1000L
+		);
+		// Calls taking longer are logged with their query trace. Negative disables tracing.
+		this.slowCallThreshold = getIntParameter(context, "wtt.trace.slowCallThreshold", -1);
+		this.archiveChunkSize = Math.max(1, getIntParameter(context, "wtt.archive.chunkSize", 500));
+		// Trees, lists and cascading deletes
+		int heavyTimeout = getIntParameter(context, "wtt.bulkhead.heavy.timeout", 5000);
+		int heavyRetryAfter = getIntParameter(context, "wtt.bulkhead.heavy.retryAfter", 10);
+		this.heavyOperations = new Bulkhead(
+			"heavy",
+			getIntParameter(context, "wtt.bulkhead.heavy.permits", 4),
+			getIntParameter(context, "wtt.bulkhead.heavy.queueSize", 16),
+			heavyTimeout,
+			heavyRetryAfter
+		);
+		// Callers joining a coalesced read wait as long as for a heavy permit
+		this.inFlightReads = new SingleFlight(heavyTimeout, heavyRetryAfter);
+		// Composite reads retry while the company changes underneath them
+		this.snapshotAttempts = Math.max(1, getIntParameter(context, "wtt.snapshot.attempts", 3));
+		this.snapshotRetryAfter = heavyRetryAfter;
+		// Single reads and small writes
+		this.lightOperations = new Bulkhead(
+			"light",
+			getIntParameter(context, "wtt.bulkhead.light.permits", 16),
+			getIntParameter(context, "wtt.bulkhead.light.queueSize", 64),
+			getIntParameter(context, "wtt.bulkhead.light.timeout", 1000),
+			getIntParameter(context, "wtt.bulkhead.light.retryAfter", 1)
+		);
+		// Move projects disabled for longer than retentionDays out of the active queries.
+		// Scheduled last so that the task never sees a partially constructed provider.
+		final int retentionDays = getIntParameter(context, "wtt.archival.retentionDays", 0);
+		if(retentionDays > 0) {
+			int interval = Math.max(1, getIntParameter(context, "wtt.archival.interval", 24));
+			this.archival = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "wtt-archival");
+						thread.setDaemon(true);
+						return thread;
+					}
+				}
+			);
+			this.archival.scheduleWithFixedDelay(
+				new Runnable() {
+					@Override
+					public void run() {
+						try {
+							archiveDisabled(TimeUnit.DAYS.toMillis(retentionDays));
+						} catch(Exception e) {
+							logger.warning("archiveDisabled() failed: " + e.getMessage());
+						}
+					}
+				},
+				interval,
+				interval,
+				TimeUnit.HOURS
+			);
+		} else {
+			this.archival = null;
+		}
+	}
+
+	/**
+	 * Stop the periodic archival. Must be called when the provider is no
+	 * longer used, e.g. when the web application is stopped.
+	 */
+	public void shutdown(
+	) {
+		if(this.archival != null) {
+			this.archival.shutdownNow();
+		}
+	}
+
+	/**
+	 * Get integer init parameter.
+	 * 
+	 * @param context
+	 * @param name
+	 * @param defaultValue
+	 * @return
+	 */
+	protected static int getIntParameter(
+		ServletContext context,
+		String name,
+		int defaultValue
+	) {
+		String value = context == null ? null : context.getInitParameter(name);
+		if(value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch(NumberFormatException e) {
+			logger.warning("init parameter <" + name + "> is not a number: " + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Get the idempotency key of a create request. The key is taken from the
+	 * Idempotency-Key header and qualified with the operation and its target.
+	 * Tracing headers like X-Request-Id are not used, they may be shared by
+	 * several calls.
+	 * 
+	 * @param request
+	 * @param operation
+	 * @param target
+	 * @return the key or null if the client did not provide one
+	 */
+	protected String getIdempotencyKey(
+		HttpServletRequest request,
+		String operation,
+		String target
+	) {
+		if(request == null) {
+			return null;
+		}
+		String requestId = request.getHeader(IDEMPOTENCY_KEY_HEADER);
+		if(requestId == null || requestId.isEmpty()) {
+			return null;
+		}
+		return operation + "/" + target + "/" + request.getRemoteUser() + "/" + requestId;
+	}
+
+	/**
+	 * Get a persistence manager of its own for long running work which
+	 * must not use the transactions of the shared persistence manager, e.g.
+	 * imports and the periodic archival. Must be closed by the caller.
+	 * 
+	 * @return
+	 */
+	protected PersistenceManager newPersistenceManager(
+	) {
+		return this.getPersistenceManager().getPersistenceManagerFactory().getPersistenceManager();
+	}
+
+	/**
+	 * Get activity segment of the given persistence manager.
+	 * 
+	 * @param pm
+	 * @return
+	 */
+	protected org.opencrx.kernel.activity1.jmi1.Segment getActivitySegment(
+		PersistenceManager pm
+	) {
+		return (org.opencrx.kernel.activity1.jmi1.Segment)pm.getObjectById(
+			this.getActivitySegment().refGetPath()
+		);
+	}
+
+	/**
+	 * Find activity.
+	 * 
+	 * @param activitySegment
+	 * @param id
+	 * @return the activity or null if not found
+	 */
+	protected Activity findActivity(
+		org.opencrx.kernel.activity1.jmi1.Segment activitySegment,
+		String id
+	) {
+		long startedAt = QueryTrace.start();
+		Activity activity = null;
+		try {
+			activity = activitySegment.getActivity(id);
+		} catch(Exception ignore) {}
+		QueryTrace.record("getActivity", startedAt, activity == null ? 0 : 1);
+		return activity;
+	}
+
+	/**
+	 * Find activity tracker.
+	 * 
+	 * @param activitySegment
+	 * @param id
+	 * @return the activity tracker or null if not found
+	 */
+	protected ActivityTracker findActivityTracker(
+		org.opencrx.kernel.activity1.jmi1.Segment activitySegment,
+		String id
+	) {
+		long startedAt = QueryTrace.start();
+		ActivityTracker activityTracker = null;
+		try {
+			activityTracker = activitySegment.getActivityTracker(id);
+		} catch(Exception ignore) {}
+		QueryTrace.record("getActivityTracker", startedAt, activityTracker == null ? 0 : 1);
+		return activityTracker;
+	}
+
+	/**
+	 * Find resource.
+	 * 
+	 * @param activitySegment
+	 * @param id
+	 * @return the resource or null if not found
+	 */
+	protected Resource findResource(
+		org.opencrx.kernel.activity1.jmi1.Segment activitySegment,
+		String id
+	) {
+		long startedAt = QueryTrace.start();
+		Resource resource = null;
+		try {
+			resource = activitySegment.getResource(id);
+		} catch(Exception ignore) {}
+		QueryTrace.record("getResource", startedAt, resource == null ? 0 : 1);
+		return resource;
+	}
+
+	/**
+	 * Find resource by name.
+	 * 
+	 * @param activitySegment
+	 * @param name
+	 * @return the first resource with the name or null if not found
+	 */
+	protected Resource findResourceByName(
+		org.opencrx.kernel.activity1.jmi1.Segment activitySegment,
+		String name
+	) {
+		PersistenceManager pm = JDOHelper.getPersistenceManager(activitySegment);
+		ResourceQuery resourceQuery = (ResourceQuery)pm.newQuery(Resource.class);
+		resourceQuery.name().equalTo(name);
+		long startedAt = QueryTrace.start();
+		List<Resource> resources = QueryTrace.fetch("ResourceQuery(name)", startedAt, activitySegment.getResource(resourceQuery), 0, 1);
+		return resources.isEmpty() ? null : resources.iterator().next();
+	}
+
+	/**
+	 * Find resource assignment of a project.
+	 * 
+	 * @param project
+	 * @param id
+	 * @return the resource assignment or null if not found
+	 */
+	protected ResourceAssignment findResourceAssignment(
+		Activity project,
+		String id
+	) {
+		long startedAt = QueryTrace.start();
+		ResourceAssignment resourceAssignment = null;
+		try {
+			resourceAssignment = project.getAssignedResource(id);
+		} catch(Exception ignore) {}
+		QueryTrace.record("getAssignedResource", startedAt, resourceAssignment == null ? 0 : 1);
+		return resourceAssignment;
+	}
+
+	/**
+	 * Get links of an activity.
+	 * 
+	 * @param activity
+	 * @return
+	 */
+	protected List<ActivityLinkTo> getActivityLinks(
+		Activity activity
+	) {
+		long startedAt = QueryTrace.start();
+		return QueryTrace.fetch("getActivityLinkTo", startedAt, activity.getActivityLinkTo());
+	}
+
+	/**
+	 * Get target of an activity link.
+	 * 
+	 * @param link
+	 * @return the linked activity or null
+	 */
+	protected Activity getLinkTo(
+		ActivityLinkTo link
+	) {
+		long startedAt = QueryTrace.start();
+		Activity activity = link.getLinkTo();
+		QueryTrace.record("getLinkTo", startedAt, activity == null ? 0 : 1);
+		return activity;
+	}
+
+	/**
+	 * Test whether an activity is assigned to an activity group.
+	 * 
+	 * @param activity
+	 * @param activityGroup
+	 * @return the assignment or null if the activity is not assigned to the group
+	 */
+	protected ActivityGroupAssignment findGroupAssignment(
+		Activity activity,
+		ActivityGroup activityGroup
+	) {
+		long startedAt = QueryTrace.start();
+		List<ActivityGroupAssignment> assignedGroups = QueryTrace.fetch("getAssignedGroup", startedAt, activity.getAssignedGroup());
+		for(ActivityGroupAssignment assignedGroup: assignedGroups) {
+			startedAt = QueryTrace.start();
+			ActivityGroup group = assignedGroup.getActivityGroup();
+			QueryTrace.record("getActivityGroup", startedAt, group == null ? 0 : 1);
+			if(group != null && group.refGetPath().equals(activityGroup.refGetPath())) {
+				return assignedGroup;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Find sub-projects, i.e. activities linked to project with IS_CHILD_OF.
+	 * 
+	 * @param activitySegment
+	 * @param project
+	 * @param position
+	 * @param size
+	 * @return
+	 */
+	protected List<Activity> findSubprojects(
+		org.opencrx.kernel.activity1.jmi1.Segment activitySegment,
+		Activity project,
+		int position,
+		int size
+	) {
+		PersistenceManager pm = this.getPersistenceManager();
+		ActivityQuery subprojectsQuery = (ActivityQuery)pm.newQuery(Activity.class);
+		subprojectsQuery.thereExistsActivityLinkTo().activityLinkType().equalTo(ActivitiesHelper.ACTIVITY_LINK_TYPE_IS_CHILD_OF);
+		subprojectsQuery.thereExistsActivityLinkTo().thereExistsLinkTo().equalTo(project);
+		long startedAt = QueryTrace.start();
+		return QueryTrace.fetch("ActivityQuery(IS_CHILD_OF)", startedAt, activitySegment.getActivity(subprojectsQuery), position, size);
 	}
 
 	/**
@@ -121,10 +498,13 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 		companyModel.setDescription(customerProjectGroup.getDescription());
 		AccountAssignmentActivityGroupQuery accountAssignmenQuery = (AccountAssignmentActivityGroupQuery)pm.newQuery(AccountAssignmentActivityGroup.class);
 		accountAssignmenQuery.accountRole().equalTo(ActivitiesHelper.ACCOUNT_ROLE_CUSTOMER);
-		List<AccountAssignmentActivityGroup> assignedAccounts = customerProjectGroup.getAssignedAccount(accountAssignmenQuery);
+		long startedAt = QueryTrace.start();
+		List<AccountAssignmentActivityGroup> assignedAccounts = QueryTrace.fetch("getAssignedAccount", startedAt, customerProjectGroup.getAssignedAccount(accountAssignmenQuery), 0, 1);
 		if(!assignedAccounts.isEmpty()) {
 			try {
+				startedAt = QueryTrace.start();
 				LegalEntity organisation = (LegalEntity)assignedAccounts.iterator().next().getAccount();
+				QueryTrace.record("getAccount", startedAt, organisation == null ? 0 : 1);
 				companyModel.setOrgId(organisation.refGetPath().getLastSegment().toClassicRepresentation());
 			} catch(Exception e) {
 				new ServiceException(e).log();
@@ -148,15 +528,18 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 		resourceRef.setModifiedAt(resourceAssignment.getModifiedAt());
 		resourceRef.setModifiedBy(resourceAssignment.getModifiedBy().get(0));
 		resourceRef.setId(resourceAssignment.refGetPath().getLastSegment().toClassicRepresentation());
+		long startedAt = QueryTrace.start();
+		Resource resource = resourceAssignment.getResource();
+		QueryTrace.record("getResource", startedAt, resource == null ? 0 : 1);
 		resourceRef.setResourceName(
-			resourceAssignment.getResource() == null 
+			resource == null 
 				? "" 
-				: resourceAssignment.getResource().getName()
+				: resource.getName()
 		);
 		resourceRef.setResourceId(
-			resourceAssignment.getResource() == null 
+			resource == null 
 				? "UNDEF"
-				: resourceAssignment.getResource().refGetPath().getLastSegment().toClassicRepresentation()
+				: resource.refGetPath().getLastSegment().toClassicRepresentation()
 		);
 		return resourceRef;
 	}
@@ -172,19 +555,23 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 		int position, 
 		int size
 	) {
-		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
-		List<ActivityTracker> trackers = ActivitiesHelper.getCustomerProjectGroups(activitySegment, null);
-		List<CompanyModel> companies = new ArrayList<CompanyModel>();
-		int count = 0;
-		for(Iterator<ActivityTracker> i = trackers.listIterator(position); i.hasNext(); ) {
-			ActivityTracker tracker = i.next();
-			companies.add(this.mapToCompany(tracker));
-			count++;
-			if(count >= size) break;
+		boolean admitted = this.heavyOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("listCompanies", this.slowCallThreshold);
+		try {
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
+			long startedAt = QueryTrace.start();
+			List<ActivityTracker> trackers = QueryTrace.fetch("getCustomerProjectGroups", startedAt, ActivitiesHelper.getCustomerProjectGroups(activitySegment, null), position, size);
+			List<CompanyModel> companies = new ArrayList<CompanyModel>();
+			for(ActivityTracker tracker: trackers) {
+				companies.add(this.mapToCompany(tracker));
+			}
+			logger.info("listCompanies() -> " + companies.size() + " companies");
+			Collections.sort(companies, CompanyModel.CompanyComparator);
+			return companies;
+		} finally {
+			QueryTrace.end(trace);
+			this.heavyOperations.release(admitted);
 		}
-		logger.info("listCompanies() -> " + companies.size() + " companies");
-		Collections.sort(companies, CompanyModel.CompanyComparator);
-		return companies;
 	}
 
 	/* (non-Javadoc)
@@ -195,40 +582,49 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 		HttpServletRequest request,
 		CompanyModel company
 	)  throws DuplicateException, ValidationException {
-		PersistenceManager pm = this.getPersistenceManager();
-		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
-		org.opencrx.kernel.account1.jmi1.Segment accountSegment = this.getAccountSegment();
-		if(company.getId() != null) {
-			try {
-				readCompany(company.getId());
-				throw new DuplicateException("Company with ID " + company.getId() + " exists already.");
-			} catch(NotFoundException ignore) {
-				throw new ValidationException("company <" + company.getId() + "> contains an ID generated on the client. This is not allowed.");
+		boolean admitted = this.lightOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("createCompany", this.slowCallThreshold);
+		try {
+			PersistenceManager pm = this.getPersistenceManager();
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
+			org.opencrx.kernel.account1.jmi1.Segment accountSegment = this.getAccountSegment();
+			if(company.getId() != null) {
+				try {
+					readCompany(company.getId());
+					throw new DuplicateException("Company with ID " + company.getId() + " exists already.");
+				} catch(NotFoundException ignore) {
+					throw new ValidationException("company <" + company.getId() + "> contains an ID generated on the client. This is not allowed.");
+				}
 			}
-		}
-		if(company.getTitle() == null || company.getTitle().length() == 0) {
-			throw new ValidationException("company must contain a valid title.");
-		}
-		if(company.getOrgId() == null) {
-			throw new ValidationException("company must contain a contactId.");
-		}
-		LegalEntity customer = (LegalEntity)accountSegment.getAccount(company.getOrgId());
-		if(customer == null) {
-			throw new ValidationException("company must contain a contactId.");
-		}
-		ActivityTracker customerProjectGroup = ActivitiesHelper.createCustomerProjectGroup(
-			pm,
-			activitySegment,
-			company.getTitle(), 
-			company.getDescription(),
-			customer
-		);
-		if(customerProjectGroup == null) {
-			throw new InternalServerErrorException();
-		} else {
-			CompanyModel _newCompany = this.mapToCompany(customerProjectGroup);
-			logger.info("createCompany() -> " + _newCompany);
-			return _newCompany;
+			if(company.getTitle() == null || company.getTitle().length() == 0) {
+				throw new ValidationException("company must contain a valid title.");
+			}
+			if(company.getOrgId() == null) {
+				throw new ValidationException("company must contain a contactId.");
+			}
+			long startedAt = QueryTrace.start();
+			LegalEntity customer = (LegalEntity)accountSegment.getAccount(company.getOrgId());
+			QueryTrace.record("getAccount", startedAt, customer == null ? 0 : 1);
+			if(customer == null) {
+				throw new ValidationException("company must contain a contactId.");
+			}
+			ActivityTracker customerProjectGroup = ActivitiesHelper.createCustomerProjectGroup(
+				pm,
+				activitySegment,
+				company.getTitle(), 
+				company.getDescription(),
+				customer
+			);
+			if(customerProjectGroup == null) {
+				throw new InternalServerErrorException();
+			} else {
+				CompanyModel _newCompany = this.mapToCompany(customerProjectGroup);
+				logger.info("createCompany() -> " + _newCompany);
+				return _newCompany;
+			}
+		} finally {
+			QueryTrace.end(trace);
+			this.lightOperations.release(admitted);
 		}
 	}
 
@@ -239,18 +635,22 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 	public CompanyModel readCompany(
 		String id
 	)  throws NotFoundException {
-		CompanyModel _company = null;
-		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
-		ActivityTracker customerProjectGroup = null;
+		boolean admitted = this.lightOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("readCompany", this.slowCallThreshold);
 		try {
-			customerProjectGroup = activitySegment.getActivityTracker(id);
-		} catch(Exception ignore) {}
-		if(customerProjectGroup == null || Boolean.TRUE.equals(customerProjectGroup.isDisabled())) {
-			throw new NotFoundException("no company with ID <" + id + "> found.");
+			CompanyModel _company = null;
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
+			ActivityTracker customerProjectGroup = this.findActivityTracker(activitySegment, id);
+			if(customerProjectGroup == null || Boolean.TRUE.equals(customerProjectGroup.isDisabled())) {
+				throw new NotFoundException("no company with ID <" + id + "> found.");
+			}
+			_company = this.mapToCompany(customerProjectGroup);
+			logger.info("readCompany(" + id + ") -> " + _company);
+			return _company;
+		} finally {
+			QueryTrace.end(trace);
+			this.lightOperations.release(admitted);
 		}
-		_company = this.mapToCompany(customerProjectGroup);
-		logger.info("readCompany(" + id + ") -> " + _company);
-		return _company;
 	}
 
 	/* (non-Javadoc)
@@ -262,28 +662,34 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 		String id,
 		CompanyModel company
 	) throws NotFoundException, ValidationException {
-		PersistenceManager pm = this.getPersistenceManager();
-		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
-		ActivityTracker customerProjectGroup = null;
-		try {
-			customerProjectGroup = activitySegment.getActivityTracker(id);
-		} catch(Exception ignore) {}
-		if(customerProjectGroup == null || Boolean.TRUE.equals(customerProjectGroup.isDisabled())) {
-			throw new NotFoundException("no company with ID <" + id + "> found.");
-		}
+		boolean admitted = this.lightOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("updateCompany", this.slowCallThreshold);
 		try {
-			pm.currentTransaction().begin();
-			customerProjectGroup.setName(company.getTitle());
-			customerProjectGroup.setDescription(company.getDescription());
-			pm.currentTransaction().commit();
-		} catch(Exception e) {
-			new ServiceException(e).log();
+			snapshots.beginWrite(id);
+			PersistenceManager pm = this.getPersistenceManager();
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
+			ActivityTracker customerProjectGroup = this.findActivityTracker(activitySegment, id);
+			if(customerProjectGroup == null || Boolean.TRUE.equals(customerProjectGroup.isDisabled())) {
+				throw new NotFoundException("no company with ID <" + id + "> found.");
+			}
 			try {
-				pm.currentTransaction().rollback();
-			} catch(Exception ignore) {}
-			throw new InternalServerErrorException(e.getMessage());
+				pm.currentTransaction().begin();
+				customerProjectGroup.setName(company.getTitle());
+				customerProjectGroup.setDescription(company.getDescription());
+				pm.currentTransaction().commit();
+			} catch(Exception e) {
+				new ServiceException(e).log();
+				try {
+					pm.currentTransaction().rollback();
+				} catch(Exception ignore) {}
+				throw new InternalServerErrorException(e.getMessage());
+			}
+			return this.readCompany(id);
+		} finally {
+			snapshots.endWrite(id);
+			QueryTrace.end(trace);
+			this.lightOperations.release(admitted);
 		}
-		return this.readCompany(id);
 	}
 
 	/* (non-Javadoc)
@@ -293,32 +699,40 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 	public void deleteCompany(
 		String id
 	) throws NotFoundException, InternalServerErrorException {
-		PersistenceManager pm = this.getPersistenceManager();
-		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
-		ActivityTracker customerProjectGroup = null;
-		try {
-			customerProjectGroup = activitySegment.getActivityTracker(id);
-		} catch(Exception ignore) {}
-		if(customerProjectGroup == null || Boolean.TRUE.equals(customerProjectGroup.isDisabled())) {
-			throw new NotFoundException("no company with ID <" + id + "> found.");
-		}
-		// Disable tracker and assigned activities
+		boolean admitted = this.heavyOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("deleteCompany", this.slowCallThreshold);
 		try {
-			pm.currentTransaction().begin();
-			customerProjectGroup.setDisabled(true);
-			List<Activity> customerProjects = ActivitiesHelper.getCustomerProjects(customerProjectGroup, false);
-			for(Activity project: customerProjects) {
-				project.setDisabled(true);
+			snapshots.beginWrite(id);
+			PersistenceManager pm = this.getPersistenceManager();
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
+			ActivityTracker customerProjectGroup = this.findActivityTracker(activitySegment, id);
+			if(customerProjectGroup == null || Boolean.TRUE.equals(customerProjectGroup.isDisabled())) {
+				throw new NotFoundException("no company with ID <" + id + "> found.");
 			}
-			pm.currentTransaction().commit();
-		} catch(Exception e) {
-			new ServiceException(e).log();
+			// Disable tracker and assigned activities
 			try {
-				pm.currentTransaction().rollback();
-			} catch(Exception ignore) {}
-			throw new InternalServerErrorException(e.getMessage());
+				pm.currentTransaction().begin();
+				customerProjectGroup.setDisabled(true);
+				long startedAt = QueryTrace.start();
+				List<Activity> customerProjects = QueryTrace.fetch("getCustomerProjects", startedAt, ActivitiesHelper.getCustomerProjects(customerProjectGroup, false));
+				for(Activity project: customerProjects) {
+					project.setDisabled(true);
+				}
+				pm.currentTransaction().commit();
+			} catch(Exception e) {
+				new ServiceException(e).log();
+				try {
+					pm.currentTransaction().rollback();
+				} catch(Exception ignore) {}
+				throw new InternalServerErrorException(e.getMessage());
+			}
+			this.aggregates.remove(id);
+			logger.info("deleteCompany(" + id + ")");
+		} finally {
+			snapshots.endWrite(id);
+			QueryTrace.end(trace);
+			this.heavyOperations.release(admitted);
 		}
-		logger.info("deleteCompany(" + id + ")");
 	}
 
 	/**
@@ -354,15 +768,101 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 	public ProjectTreeNodeModel readAsTree(
 		String compId
 	) throws NotFoundException {
-		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
-		ActivityTracker customerProjectGroup = null;
+		return this.readAsTreeSnapshot(compId).getTree();
+	}
+
+	/**
+	 * Read company as tree together with the version of the company the
+	 * tree was read at. The tree is read from a single version, i.e. no
+	 * mutation of the company made through a provider of this JVM
+	 * interleaves with it. The version is only comparable with versions of
+	 * this JVM. It is not an ETag.
+	 * 
+	 * @param compId
+	 * @return
+	 * @throws NotFoundException
+	 */
+	public ProjectTreeSnapshotModel readAsTreeSnapshot(
+		final String compId
+	) throws NotFoundException {
+		return this.inFlightReads.execute(
+			"readAsTree/" + compId,
+			new Callable<ProjectTreeSnapshotModel>() {
+				@Override
+				public ProjectTreeSnapshotModel call() {
+					return loadTree(compId);
+				}
+			}
+		);
+	}
+
+	/**
+	 * Get current version of a company. The version advances with every
+	 * mutation of the company or its projects and resource refs made through
+	 * a provider of this JVM. It may also advance without a mutation and is
+	 * only valid within this JVM.
+	 * 
+	 * @param compId
+	 * @return
+	 */
+	public long getVersion(
+		String compId
+	) {
+		return snapshots.getVersion(compId);
+	}
+
+	/**
+	 * Load company as tree. Concurrent identical requests are coalesced by readAsTreeSnapshot().
+	 * 
+	 * @param compId
+	 * @return
+	 * @throws NotFoundException
+	 */
+	protected ProjectTreeSnapshotModel loadTree(
+		String compId
+	) throws NotFoundException {
+		boolean admitted = this.heavyOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("readAsTree", this.slowCallThreshold);
 		try {
-			customerProjectGroup = activitySegment.getActivityTracker(compId);
-		} catch(Exception ignore) {}
+			for(int attempt = 1; ; attempt++) {
+				long version = snapshots.beginRead(compId);
+				try {
+					ProjectTreeNodeModel _result = this.buildTree(compId);
+					if(snapshots.isUnchanged(compId, version)) {
+						ProjectTreeSnapshotModel _snapshot = new ProjectTreeSnapshotModel();
+						_snapshot.setVersion(version);
+						_snapshot.setTree(_result);
+						return _snapshot;
+					}
+				} finally {
+					snapshots.endRead(compId);
+				}
+				this.checkReadAttempt(compId, attempt);
+			}
+		} finally {
+			QueryTrace.end(trace);
+			this.heavyOperations.release(admitted);
+		}
+	}
+
+	/**
+	 * Build company tree. The tree is only consistent if the company did not
+	 * change while it was built.
+	 * 
+	 * @param compId
+	 * @return
+	 * @throws NotFoundException
+	 */
+	protected ProjectTreeNodeModel buildTree(
+		String compId
+	) throws NotFoundException {
+		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
+		ActivityTracker customerProjectGroup = this.findActivityTracker(activitySegment, compId);
 		if(customerProjectGroup == null || Boolean.TRUE.equals(customerProjectGroup.isDisabled())) {
 			throw new NotFoundException("no company with ID <" + compId + "> found.");
 		}
-		List<Activity> customerProjects = ActivitiesHelper.getCustomerProjects(customerProjectGroup, true);
+		long startedAt = QueryTrace.start();
+		List<Activity> customerProjects = QueryTrace.fetch("getCustomerProjects", startedAt, ActivitiesHelper.getCustomerProjects(customerProjectGroup, true));
 		ProjectTreeNodeModel _result = new ProjectTreeNodeModel();
 		_result.setId(compId);
 		_result.setProjects(new ArrayList<ProjectTreeNodeModel>());
@@ -374,41 +874,259 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 		return _result;
 	}
 
-	/******************************** projects *****************************************/
-	/* (non-Javadoc)
-	 * @see org.opentdc.wtt.ServiceProvider#listProjects(java.lang.String, java.lang.String, java.lang.String, int, int)
+	/**
+	 * Give up a composite read if the company changed during each of the
+	 * configured number of attempts.
+	 * 
+	 * @param compId
+	 * @param attempt the attempt which just failed, starting with 1
+	 * @throws ServiceOverloadedException
 	 */
-	@Override
-	public List<ProjectModel> listProjects(
+	protected void checkReadAttempt(
 		String compId,
-		String query, 
-		String queryType, 
-		int position, 
-		int size
-	) {
-		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
-		ActivityTracker customerProjectGroup = null;
-		try {
-			customerProjectGroup = activitySegment.getActivityTracker(compId);
-		} catch(Exception ignore) {}
-		if(customerProjectGroup == null || Boolean.TRUE.equals(customerProjectGroup.isDisabled())) {
-			throw new NotFoundException("no company with ID <" + compId + "> found.");
+		int attempt
+	) throws ServiceOverloadedException {
+		if(attempt >= this.snapshotAttempts) {
+			throw new ServiceOverloadedException("company <" + compId + "> changed while it was read.", this.snapshotRetryAfter);
 		}
-		List<Activity> customerProjects = ActivitiesHelper.getCustomerProjects(customerProjectGroup, true);
-		ArrayList<ProjectModel> _result = new ArrayList<ProjectModel>();
-		int count = 0;
-		for(Iterator<Activity> i = customerProjects.listIterator(position); i.hasNext(); ) {
-			Activity customerProject = i.next();
-			_result.add(
-				this.mapToProject(customerProject)
-			);
-			count++;
-			if(count >= size) break;
-		}
-		return _result;
 	}
 
-	/* (non-Javadoc)
+	/**
+	 * Read aggregate counts of subprojects and resources for a company and
+	 * each of its projects. The counts are computed in one pass over the
+	 * company's projects and then maintained incrementally by the create and
+	 * delete operations.
+	 * 
+	 * @param compId
+	 * @return the company node followed by its projects, parents before children
+	 * @throws NotFoundException
+	 */
+	public List<ProjectAggregateModel> readAggregates(
+		String compId
+	) throws NotFoundException {
+		HierarchyAggregates _aggregates = this.aggregates.get(compId);
+		if(_aggregates != null) {
+			return _aggregates.toModels();
+		}
+		boolean admitted = this.heavyOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("readAggregates", this.slowCallThreshold);
+		try {
+			for(int attempt = 1; ; attempt++) {
+				long version = snapshots.beginRead(compId);
+				try {
+					_aggregates = this.buildAggregates(compId);
+					// Cache before the check, a mutation of the company starting
+					// later then either updates or removes the cached aggregates
+					HierarchyAggregates cached = this.aggregates.putIfAbsent(compId, _aggregates);
+					if(snapshots.isUnchanged(compId, version)) {
+						return (cached == null ? _aggregates : cached).toModels();
+					}
+					this.aggregates.remove(compId, _aggregates);
+				} finally {
+					snapshots.endRead(compId);
+				}
+				this.checkReadAttempt(compId, attempt);
+			}
+		} finally {
+			QueryTrace.end(trace);
+			this.heavyOperations.release(admitted);
+		}
+	}
+
+	/**
+	 * Compute aggregates of a company. The aggregates are only consistent if
+	 * the company did not change while they were computed.
+	 * 
+	 * @param compId
+	 * @return
+	 * @throws NotFoundException
+	 */
+	protected HierarchyAggregates buildAggregates(
+		String compId
+	) throws NotFoundException {
+		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
+		ActivityTracker customerProjectGroup = this.findActivityTracker(activitySegment, compId);
+		if(customerProjectGroup == null || Boolean.TRUE.equals(customerProjectGroup.isDisabled())) {
+			throw new NotFoundException("no company with ID <" + compId + "> found.");
+		}
+		HierarchyAggregates _aggregates = new HierarchyAggregates(compId);
+		long startedAt = QueryTrace.start();
+		List<Activity> customerProjects = QueryTrace.fetch("getCustomerProjects", startedAt, ActivitiesHelper.getCustomerProjects(customerProjectGroup, false));
+		Map<String,String> parentIds = new HashMap<String,String>();
+		Map<String,Integer> resources = new HashMap<String,Integer>();
+		for(Activity customerProject: customerProjects) {
+			if(!Boolean.TRUE.equals(customerProject.isDisabled())) {
+				resources.put(customerProject.refGetPath().getLastSegment().toClassicRepresentation(), 0);
+			}
+		}
+		// Fetch the parent links of all projects at once and group them by
+		// project instead of navigating each project
+		PersistenceManager pm = this.getPersistenceManager();
+		ActivityLinkToQuery linkToQuery = (ActivityLinkToQuery)PersistenceHelper.newQuery(
+			pm.getExtent(ActivityLinkTo.class),
+			activitySegment.refGetPath().getDescendant("activity", ":*", "activityLinkTo", ":*")
+		);
+		linkToQuery.activityLinkType().equalTo(ActivitiesHelper.ACTIVITY_LINK_TYPE_IS_CHILD_OF);
+		linkToQuery.thereExistsLinkTo().elementOf(customerProjects);
+		startedAt = QueryTrace.start();
+		List<ActivityLinkTo> links = QueryTrace.fetch("ActivityLinkToQuery(IS_CHILD_OF)", startedAt, activitySegment.<ActivityLinkTo>getExtent(linkToQuery));
+		for(ActivityLinkTo link: links) {
+			String projId = link.refGetPath().getParent().getParent().getLastSegment().toClassicRepresentation();
+			if(resources.containsKey(projId) && !parentIds.containsKey(projId)) {
+				Activity parentProject = this.getLinkTo(link);
+				if(parentProject != null) {
+					parentIds.put(projId, parentProject.refGetPath().getLastSegment().toClassicRepresentation());
+				}
+			}
+		}
+		// Resource assignments are only read for the company's projects, the
+		// assignments of other companies are never fetched
+		for(Activity customerProject: customerProjects) {
+			String projId = customerProject.refGetPath().getLastSegment().toClassicRepresentation();
+			if(resources.containsKey(projId)) {
+				startedAt = QueryTrace.start();
+				List<ResourceAssignment> resourceAssignments = QueryTrace.fetch("getProjectResources", startedAt, ActivitiesHelper.getProjectResources(customerProject));
+				int count = 0;
+				for(ResourceAssignment resourceAssignment: resourceAssignments) {
+					if(!Boolean.TRUE.equals(resourceAssignment.isDisabled())) {
+						count++;
+					}
+				}
+				resources.put(projId, count);
+			}
+		}
+		for(Activity customerProject: customerProjects) {
+			String projId = customerProject.refGetPath().getLastSegment().toClassicRepresentation();
+			if(resources.containsKey(projId)) {
+				_aggregates.put(
+					projId,
+					parentIds.get(projId),
+					resources.get(projId)
+				);
+			}
+		}
+		_aggregates.complete();
+		return _aggregates;
+	}
+
+	/**
+	 * Update aggregates after a project was created.
+	 * 
+	 * @param compId
+	 * @param parentId the parent project or compId for a top-level project
+	 * @param projId
+	 */
+	protected void onProjectCreated(
+		String compId,
+		String parentId,
+		String projId
+	) {
+		HierarchyAggregates _aggregates = this.aggregates.get(compId);
+		if(_aggregates != null && !_aggregates.addProject(parentId, projId)) {
+			this.aggregates.remove(compId);
+		}
+	}
+
+	/**
+	 * Update aggregates after a project and its subprojects were deleted.
+	 * 
+	 * @param compId
+	 * @param projId
+	 */
+	protected void onProjectDeleted(
+		String compId,
+		String projId
+	) {
+		HierarchyAggregates _aggregates = this.aggregates.get(compId);
+		if(_aggregates != null) {
+			_aggregates.removeProject(projId);
+		}
+	}
+
+	/**
+	 * Update aggregates after resource refs were added to or removed from a project.
+	 * 
+	 * @param compId
+	 * @param projId
+	 * @param delta
+	 */
+	protected void onResourceRefsChanged(
+		String compId,
+		String projId,
+		int delta
+	) {
+		HierarchyAggregates _aggregates = this.aggregates.get(compId);
+		if(_aggregates != null && !_aggregates.addResources(projId, delta)) {
+			this.aggregates.remove(compId);
+		}
+	}
+
+	/******************************** projects *****************************************/
+	/* (non-Javadoc)
+	 * @see org.opentdc.wtt.ServiceProvider#listProjects(java.lang.String, java.lang.String, java.lang.String, int, int)
+	 */
+	@Override
+	public List<ProjectModel> listProjects(
+		final String compId,
+		final String query, 
+		final String queryType, 
+		final int position, 
+		final int size
+	) {
+		List<ProjectModel> _result = this.inFlightReads.execute(
+			"listProjects/" + compId + "/" + query + "/" + queryType + "/" + position + "/" + size,
+			new Callable<List<ProjectModel>>() {
+				@Override
+				public List<ProjectModel> call() {
+					return loadProjects(compId, query, queryType, position, size);
+				}
+			}
+		);
+		// Callers of a coalesced request must not share the list
+		return new ArrayList<ProjectModel>(_result);
+	}
+
+	/**
+	 * Load projects. Concurrent identical requests are coalesced by listProjects().
+	 * 
+	 * @param compId
+	 * @param query
+	 * @param queryType
+	 * @param position
+	 * @param size
+	 * @return
+	 */
+	protected List<ProjectModel> loadProjects(
+		String compId,
+		String query, 
+		String queryType, 
+		int position, 
+		int size
+	) {
+		boolean admitted = this.heavyOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("listProjects", this.slowCallThreshold);
+		try {
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
+			ActivityTracker customerProjectGroup = this.findActivityTracker(activitySegment, compId);
+			if(customerProjectGroup == null || Boolean.TRUE.equals(customerProjectGroup.isDisabled())) {
+				throw new NotFoundException("no company with ID <" + compId + "> found.");
+			}
+			long startedAt = QueryTrace.start();
+			List<Activity> customerProjects = QueryTrace.fetch("getCustomerProjects", startedAt, ActivitiesHelper.getCustomerProjects(customerProjectGroup, true), position, size);
+			ArrayList<ProjectModel> _result = new ArrayList<ProjectModel>();
+			for(Activity customerProject: customerProjects) {
+				_result.add(
+					this.mapToProject(customerProject)
+				);
+			}
+			return _result;
+		} finally {
+			QueryTrace.end(trace);
+			this.heavyOperations.release(admitted);
+		}
+	}
+
+	/* (non-Javadoc)
 	 * @see org.opentdc.wtt.ServiceProvider#createProject(java.lang.String, org.opentdc.wtt.ProjectModel)
 	 */
 	@Override
@@ -417,46 +1135,64 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 		String compId, 
 		ProjectModel project
 	) throws DuplicateException, ValidationException {
-		logger.info("> createProject(" + compId + ", " + project + ")");
-		PersistenceManager pm = this.getPersistenceManager();
-		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
-		ActivityTracker customerProjectGroup = null;
-		try {
-			customerProjectGroup = activitySegment.getActivityTracker(compId);
-		} catch(Exception ignore) {}
-		if(customerProjectGroup == null || Boolean.TRUE.equals(customerProjectGroup.isDisabled())) {
-			throw new NotFoundException("no company with ID <" + compId + "> found.");
+		String idempotencyKey = this.getIdempotencyKey(request, "createProject", compId);
+		ProjectModel _p = this.idempotencyCache.begin(
+			idempotencyKey,
+			IdempotencyCache.hash(project.getTitle(), project.getDescription()),
+			ProjectModel.class
+		);
+		if(_p != null) {
+			logger.info("createProject(" + compId + ") replayed -> " + _p);
+			return _p;
 		}
-		if(project.getId() != null) {
-			Activity _project = null;
+		try {
+			boolean admitted = this.lightOperations.acquire();
+			QueryTrace trace = QueryTrace.begin("createProject", this.slowCallThreshold);
 			try {
-				_project = activitySegment.getActivity(project.getId());
-			} catch(Exception ignore) {}
-			if(_project != null) {
-				throw new DuplicateException("Project with ID " + project.getId() + " exists already.");				
-			} else {
-				throw new ValidationException("project <" + project.getId() + "> contains an ID generated on the client. This is not allowed.");
+				snapshots.beginWrite(compId);
+				logger.info("> createProject(" + compId + ", " + project + ")");
+				PersistenceManager pm = this.getPersistenceManager();
+				org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
+				ActivityTracker customerProjectGroup = this.findActivityTracker(activitySegment, compId);
+				if(customerProjectGroup == null || Boolean.TRUE.equals(customerProjectGroup.isDisabled())) {
+					throw new NotFoundException("no company with ID <" + compId + "> found.");
+				}
+				if(project.getId() != null) {
+					Activity _project = this.findActivity(activitySegment, project.getId());
+					if(_project != null) {
+						throw new DuplicateException("Project with ID " + project.getId() + " exists already.");				
+					} else {
+						throw new ValidationException("project <" + project.getId() + "> contains an ID generated on the client. This is not allowed.");
+					}
+				}
+				if(project.getTitle() == null || project.getTitle().isEmpty()) {
+					throw new ValidationException("project must have a valid title.");
+				}
+				Activity _project = ActivitiesHelper.createCustomerProject(
+					pm,
+					customerProjectGroup,
+					project.getTitle(), 
+					project.getDescription(), 
+					null,
+					new Date(), 
+					new Date(),
+					ActivitiesHelper.ACTIVITY_PRIORITY_NA,
+					null
+				);
+				if(_project == null) {
+					throw new InternalServerErrorException();
+				} else {
+					_p = this.mapToProject(_project);
+					this.onProjectCreated(compId, compId, _p.getId());
+					return(_p);
+				}
+			} finally {
+				snapshots.endWrite(compId);
+				QueryTrace.end(trace);
+				this.lightOperations.release(admitted);
 			}
-		}
-		if(project.getTitle() == null || project.getTitle().isEmpty()) {
-			throw new ValidationException("project must have a valid title.");
-		}
-		Activity _project = ActivitiesHelper.createCustomerProject(
-			pm,
-			customerProjectGroup,
-			project.getTitle(), 
-			project.getDescription(), 
-			null,
-			new Date(), 
-			new Date(),
-			ActivitiesHelper.ACTIVITY_PRIORITY_NA,
-			null
-		);
-		if(_project == null) {
-			throw new InternalServerErrorException();
-		} else {
-			ProjectModel _p = this.mapToProject(_project);
-			return(_p);
+		} finally {
+			this.idempotencyCache.end(idempotencyKey, _p);
 		}
 	}
 
@@ -468,17 +1204,21 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 		String compId,
 		String projId
 	) throws NotFoundException {
-		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();		
-		Activity project = null;
+		boolean admitted = this.lightOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("readProject", this.slowCallThreshold);
 		try {
-			project = activitySegment.getActivity(projId);
-		} catch(Exception ignore) {}
-		if(project == null || Boolean.TRUE.equals(project.isDisabled())) {
-			throw new NotFoundException("no project with ID <" + projId + "> found.");
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();		
+			Activity project = this.findActivity(activitySegment, projId);
+			if(project == null || Boolean.TRUE.equals(project.isDisabled())) {
+				throw new NotFoundException("no project with ID <" + projId + "> found.");
+			}
+			ProjectModel _p = this.mapToProject(project);
+			logger.info("readProject(" + projId + "): " + _p);
+			return _p;
+		} finally {
+			QueryTrace.end(trace);
+			this.lightOperations.release(admitted);
 		}
-		ProjectModel _p = this.mapToProject(project);
-		logger.info("readProject(" + projId + "): " + _p);
-		return _p;
 	}
 
 	/* (non-Javadoc)
@@ -491,27 +1231,33 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 		String projId,
 		ProjectModel p
 	) throws NotFoundException, ValidationException {
-		PersistenceManager pm = this.getPersistenceManager();
-		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();		
-		Activity project = null;
+		boolean admitted = this.lightOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("updateProject", this.slowCallThreshold);
 		try {
-			project = activitySegment.getActivity(projId);
-		} catch(Exception ignore) {}
-		if(project == null) {
-			throw new NotFoundException("no project with ID <" + projId + "> found.");
-		}
-		try {
-			pm.currentTransaction().begin();
-			project.setName(p.getTitle());
-			project.setDescription(p.getDescription());
-			pm.currentTransaction().commit();
-		} catch(Exception e) {
-			new ServiceException(e).log();
+			snapshots.beginWrite(compId);
+			PersistenceManager pm = this.getPersistenceManager();
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();		
+			Activity project = this.findActivity(activitySegment, projId);
+			if(project == null) {
+				throw new NotFoundException("no project with ID <" + projId + "> found.");
+			}
 			try {
-				pm.currentTransaction().rollback();
-			} catch(Exception ignore) {}
+				pm.currentTransaction().begin();
+				project.setName(p.getTitle());
+				project.setDescription(p.getDescription());
+				pm.currentTransaction().commit();
+			} catch(Exception e) {
+				new ServiceException(e).log();
+				try {
+					pm.currentTransaction().rollback();
+				} catch(Exception ignore) {}
+			}
+			return this.readProject(compId, projId);
+		} finally {
+			snapshots.endWrite(compId);
+			QueryTrace.end(trace);
+			this.lightOperations.release(admitted);
 		}
-		return this.readProject(compId, projId);
 	}
 
 	/* (non-Javadoc)
@@ -522,30 +1268,37 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 		String compId, 
 		String projId
 	) throws NotFoundException, InternalServerErrorException {
-		PersistenceManager pm = this.getPersistenceManager();
-		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();		
-		Activity project = null;
+		boolean admitted = this.heavyOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("deleteProject", this.slowCallThreshold);
 		try {
-			project = activitySegment.getActivity(projId);
-		} catch(Exception ignore) {}
-		if(project == null || Boolean.TRUE.equals(project.isDisabled())) {
-			throw new NotFoundException("no project with ID <" + projId + "> found.");
-		}
-		try {
-			// Delete project
-			pm.currentTransaction().begin();
-			project.setDisabled(true);
-			pm.currentTransaction().commit();
-			// ... and sub-projects
-			List<ProjectModel> subprojects = this.listSubprojects(compId, projId, null, null, 0, 0);
-			for(ProjectModel subproject: subprojects) {
-				this.deleteSubproject(compId, projId, subproject.getId());
+			snapshots.beginWrite(compId);
+			PersistenceManager pm = this.getPersistenceManager();
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();		
+			Activity project = this.findActivity(activitySegment, projId);
+			if(project == null || Boolean.TRUE.equals(project.isDisabled())) {
+				throw new NotFoundException("no project with ID <" + projId + "> found.");
 			}
-		} catch(Exception e) {
-			new ServiceException(e).log();
 			try {
-				pm.currentTransaction().rollback();
-			} catch(Exception ignore) {}
+				// Delete project
+				pm.currentTransaction().begin();
+				project.setDisabled(true);
+				pm.currentTransaction().commit();
+				this.onProjectDeleted(compId, projId);
+				// ... and sub-projects
+				List<ProjectModel> subprojects = this.listSubprojects(compId, projId, null, null, 0, Integer.MAX_VALUE);
+				for(ProjectModel subproject: subprojects) {
+					this.deleteSubproject(compId, projId, subproject.getId());
+				}
+			} catch(Exception e) {
+				new ServiceException(e).log();
+				try {
+					pm.currentTransaction().rollback();
+				} catch(Exception ignore) {}
+			}
+		} finally {
+			snapshots.endWrite(compId);
+			QueryTrace.end(trace);
+			this.heavyOperations.release(admitted);
 		}
 	}
 
@@ -563,22 +1316,23 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 		int position, 
 		int size
 	) {
-		PersistenceManager pm = this.getPersistenceManager();
-		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
-		Activity project = activitySegment.getActivity(projId);
-		ActivityQuery subprojectsQuery = (ActivityQuery)pm.newQuery(Activity.class);
-		subprojectsQuery.thereExistsActivityLinkTo().activityLinkType().equalTo(ActivitiesHelper.ACTIVITY_LINK_TYPE_IS_CHILD_OF);
-		subprojectsQuery.thereExistsActivityLinkTo().thereExistsLinkTo().equalTo(project);
-		List<Activity> subprojects = activitySegment.getActivity(subprojectsQuery);
-		List<ProjectModel> result = new ArrayList<ProjectModel>();
-		int count = 0;
-		for(Iterator<Activity> i = subprojects.listIterator(position); i.hasNext(); ) {
-			Activity subproject = i.next();
-			result.add(this.mapToProject(subproject));
-			count++;
-			if(count >= size) break;
+		boolean admitted = this.heavyOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("listSubprojects", this.slowCallThreshold);
+		try {
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
+			long startedAt = QueryTrace.start();
+			Activity project = activitySegment.getActivity(projId);
+			QueryTrace.record("getActivity", startedAt, project == null ? 0 : 1);
+			List<Activity> subprojects = this.findSubprojects(activitySegment, project, position, size);
+			List<ProjectModel> result = new ArrayList<ProjectModel>();
+			for(Activity subproject: subprojects) {
+				result.add(this.mapToProject(subproject));
+			}
+			return result;
+		} finally {
+			QueryTrace.end(trace);
+			this.heavyOperations.release(admitted);
 		}
-		return result;
 	}
 
 	/* (non-Javadoc)
@@ -591,53 +1345,68 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 		String projId,
 		ProjectModel project
 	) throws DuplicateException, ValidationException {
-		logger.info("> createSubproject(" + compId + ", " + project + ")");
-		PersistenceManager pm = this.getPersistenceManager();
-		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
-		ActivityTracker customerProjectGroup = null;
-		try {
-			customerProjectGroup = activitySegment.getActivityTracker(compId);
-		} catch(Exception ignore) {}
-		if(customerProjectGroup == null || Boolean.TRUE.equals(customerProjectGroup.isDisabled())) {
-			throw new NotFoundException("no company with ID <" + compId + "> found.");
+		String idempotencyKey = this.getIdempotencyKey(request, "createSubproject", compId + "/" + projId);
+		ProjectModel _p = this.idempotencyCache.begin(
+			idempotencyKey,
+			IdempotencyCache.hash(project.getTitle(), project.getDescription()),
+			ProjectModel.class
+		);
+		if(_p != null) {
+			logger.info("createSubproject(" + compId + ", " + projId + ") replayed -> " + _p);
+			return _p;
 		}
-		Activity parentProject = null;
 		try {
-			parentProject = activitySegment.getActivity(projId);
-		} catch(Exception ignore) {}
-		if(parentProject == null) {
-			throw new NotFoundException("Project with ID " + projId + " not found.");				
-		}
-		if(project.getId() != null) {
-			Activity _project = null;
+			boolean admitted = this.lightOperations.acquire();
+			QueryTrace trace = QueryTrace.begin("createSubproject", this.slowCallThreshold);
 			try {
-				_project = activitySegment.getActivity(project.getId());
-			} catch(Exception ignore) {}
-			if(_project != null) {
-				throw new DuplicateException("Project with ID " + project.getId() + " exists already.");				
-			} else {
-				throw new ValidationException("project <" + project.getId() + "> contains an ID generated on the client. This is not allowed.");
+				snapshots.beginWrite(compId);
+				logger.info("> createSubproject(" + compId + ", " + project + ")");
+				PersistenceManager pm = this.getPersistenceManager();
+				org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
+				ActivityTracker customerProjectGroup = this.findActivityTracker(activitySegment, compId);
+				if(customerProjectGroup == null || Boolean.TRUE.equals(customerProjectGroup.isDisabled())) {
+					throw new NotFoundException("no company with ID <" + compId + "> found.");
+				}
+				Activity parentProject = this.findActivity(activitySegment, projId);
+				if(parentProject == null) {
+					throw new NotFoundException("Project with ID " + projId + " not found.");				
+				}
+				if(project.getId() != null) {
+					Activity _project = this.findActivity(activitySegment, project.getId());
+					if(_project != null) {
+						throw new DuplicateException("Project with ID " + project.getId() + " exists already.");				
+					} else {
+						throw new ValidationException("project <" + project.getId() + "> contains an ID generated on the client. This is not allowed.");
+					}
+				}
+				if(project.getTitle() == null || project.getTitle().length() == 0) {
+					throw new ValidationException("project must have a valid title.");
+				}
+				Activity _project = ActivitiesHelper.createCustomerProject(
+					pm,
+					customerProjectGroup,
+					project.getTitle(), 
+					project.getDescription(), 
+					null,
+					new Date(), 
+					new Date(), 
+					ActivitiesHelper.ACTIVITY_PRIORITY_NA,
+					parentProject
+				);
+				if(_project == null) {
+					throw new InternalServerErrorException();
+				} else {
+					_p = this.mapToProject(_project);
+					this.onProjectCreated(compId, projId, _p.getId());
+					return _p;
+				}
+			} finally {
+				snapshots.endWrite(compId);
+				QueryTrace.end(trace);
+				this.lightOperations.release(admitted);
 			}
-		}
-		if(project.getTitle() == null || project.getTitle().length() == 0) {
-			throw new ValidationException("project must have a valid title.");
-		}
-		Activity _project = ActivitiesHelper.createCustomerProject(
-			pm,
-			customerProjectGroup,
-			project.getTitle(), 
-			project.getDescription(), 
-			null,
-			new Date(), 
-			new Date(), 
-			ActivitiesHelper.ACTIVITY_PRIORITY_NA,
-			parentProject
-		);
-		if(_project == null) {
-			throw new InternalServerErrorException();
-		} else {
-			ProjectModel _p = this.mapToProject(_project);
-			return _p;
+		} finally {
+			this.idempotencyCache.end(idempotencyKey, _p);
 		}
 	}
 
@@ -650,17 +1419,21 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 		String projId,
 		String subprojId
 	)  throws NotFoundException {
-		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();		
-		Activity _project = null;
+		boolean admitted = this.lightOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("readSubproject", this.slowCallThreshold);
 		try {
-			_project = activitySegment.getActivity(subprojId);
-		} catch(Exception ignore) {}
-		if(_project == null || Boolean.TRUE.equals(_project.isDisabled())) {
-			throw new NotFoundException("no sub-project with ID <" + projId + "> found.");
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();		
+			Activity _project = this.findActivity(activitySegment, subprojId);
+			if(_project == null || Boolean.TRUE.equals(_project.isDisabled())) {
+				throw new NotFoundException("no sub-project with ID <" + projId + "> found.");
+			}
+			ProjectModel _p = this.mapToProject(_project);
+			logger.info("readSubproject(" + projId + "): " + _p);
+			return _p;
+		} finally {
+			QueryTrace.end(trace);
+			this.lightOperations.release(admitted);
 		}
-		ProjectModel _p = this.mapToProject(_project);
-		logger.info("readSubproject(" + projId + "): " + _p);
-		return _p;
 	}
 
 	/* (non-Javadoc)
@@ -674,27 +1447,33 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 		String subprojId, 
 		ProjectModel project
 	) throws NotFoundException, ValidationException {
-		PersistenceManager pm = this.getPersistenceManager();
-		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();		
-		Activity _project = null;
-		try {
-			_project = activitySegment.getActivity(subprojId);
-		} catch(Exception ignore) {}
-		if(_project == null || Boolean.TRUE.equals(_project.isDisabled())) {
-			throw new NotFoundException("no sub-project with ID <" + projId + "> found.");
-		}
+		boolean admitted = this.lightOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("updateSubproject", this.slowCallThreshold);
 		try {
-			pm.currentTransaction().begin();
-			_project.setName(project.getTitle());
-			_project.setDescription(project.getDescription());
-			pm.currentTransaction().commit();
-		} catch(Exception e) {
-			new ServiceException(e).log();
+			snapshots.beginWrite(compId);
+			PersistenceManager pm = this.getPersistenceManager();
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();		
+			Activity _project = this.findActivity(activitySegment, subprojId);
+			if(_project == null || Boolean.TRUE.equals(_project.isDisabled())) {
+				throw new NotFoundException("no sub-project with ID <" + projId + "> found.");
+			}
 			try {
-				pm.currentTransaction().rollback();
-			} catch(Exception ignore) {}
+				pm.currentTransaction().begin();
+				_project.setName(project.getTitle());
+				_project.setDescription(project.getDescription());
+				pm.currentTransaction().commit();
+			} catch(Exception e) {
+				new ServiceException(e).log();
+				try {
+					pm.currentTransaction().rollback();
+				} catch(Exception ignore) {}
+			}
+			return this.readSubproject(compId, projId, subprojId);
+		} finally {
+			snapshots.endWrite(compId);
+			QueryTrace.end(trace);
+			this.lightOperations.release(admitted);
 		}
-		return this.readSubproject(compId, projId, subprojId);
 	}
 
 	/* (non-Javadoc)
@@ -706,30 +1485,37 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 		String projId, 
 		String subprojId
 	) throws NotFoundException, InternalServerErrorException {
-		PersistenceManager pm = this.getPersistenceManager();
-		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();		
-		Activity _subproject = null;
-		try {
-			_subproject = activitySegment.getActivity(subprojId);
-		} catch(Exception ignore) {}
-		if(_subproject == null || Boolean.TRUE.equals(_subproject.isDisabled())) {
-			throw new NotFoundException("no sub-project with ID <" + subprojId + "> found.");
-		}
+		boolean admitted = this.heavyOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("deleteSubproject", this.slowCallThreshold);
 		try {
-			// Delete sub-project
-			pm.currentTransaction().begin();
-			_subproject.setDisabled(true);
-			pm.currentTransaction().commit();
-			// ... and its sub-projects
-			List<ProjectModel> subprojects = this.listSubprojects(compId, subprojId, null, null, 0, 0);
-			for(ProjectModel subproject: subprojects) {
-				this.deleteSubproject(compId, projId, subproject.getId());
+			snapshots.beginWrite(compId);
+			PersistenceManager pm = this.getPersistenceManager();
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();		
+			Activity _subproject = this.findActivity(activitySegment, subprojId);
+			if(_subproject == null || Boolean.TRUE.equals(_subproject.isDisabled())) {
+				throw new NotFoundException("no sub-project with ID <" + subprojId + "> found.");
 			}
-		} catch(Exception e) {
-			new ServiceException(e).log();
 			try {
-				pm.currentTransaction().rollback();
-			} catch(Exception ignore) {}
+				// Delete sub-project
+				pm.currentTransaction().begin();
+				_subproject.setDisabled(true);
+				pm.currentTransaction().commit();
+				this.onProjectDeleted(compId, subprojId);
+				// ... and its sub-projects
+				List<ProjectModel> subprojects = this.listSubprojects(compId, subprojId, null, null, 0, Integer.MAX_VALUE);
+				for(ProjectModel subproject: subprojects) {
+					this.deleteSubproject(compId, projId, subproject.getId());
+				}
+			} catch(Exception e) {
+				new ServiceException(e).log();
+				try {
+					pm.currentTransaction().rollback();
+				} catch(Exception ignore) {}
+			}
+		} finally {
+			snapshots.endWrite(compId);
+			QueryTrace.end(trace);
+			this.heavyOperations.release(admitted);
 		}
 	}
 
@@ -746,24 +1532,25 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 		int position,
 		int size
 	)  throws NotFoundException {
-		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();		
-		Activity project = null;
+		boolean admitted = this.heavyOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("listResourceRefs", this.slowCallThreshold);
 		try {
-			project = activitySegment.getActivity(projId);
-		} catch(Exception ignore) {}
-		if(project == null || Boolean.TRUE.equals(project.isDisabled())) {
-			throw new NotFoundException("no project with ID <" + projId + "> found.");
-		}
-		List<ResourceAssignment> resourceAssignments = ActivitiesHelper.getProjectResources(project);
-		List<ResourceRefModel> _result = new ArrayList<ResourceRefModel>();
-		int count = 0;
-		for(Iterator<ResourceAssignment> i = resourceAssignments.listIterator(position); i.hasNext(); ) {
-			ResourceAssignment resourceAssignment = i.next();
-			_result.add(this.mapToResourceRef(resourceAssignment));
-			count++;
-			if(count >= size) break;
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();		
+			Activity project = this.findActivity(activitySegment, projId);
+			if(project == null || Boolean.TRUE.equals(project.isDisabled())) {
+				throw new NotFoundException("no project with ID <" + projId + "> found.");
+			}
+			long startedAt = QueryTrace.start();
+			List<ResourceAssignment> resourceAssignments = QueryTrace.fetch("getProjectResources", startedAt, ActivitiesHelper.getProjectResources(project), position, size);
+			List<ResourceRefModel> _result = new ArrayList<ResourceRefModel>();
+			for(ResourceAssignment resourceAssignment: resourceAssignments) {
+				_result.add(this.mapToResourceRef(resourceAssignment));
+			}
+			return _result;
+		} finally {
+			QueryTrace.end(trace);
+			this.heavyOperations.release(admitted);
 		}
-		return _result;
 	}
 
 	/* (non-Javadoc)
@@ -776,90 +1563,965 @@ public class OpencrxServiceProvider extends AbstractOpencrxServiceProvider imple
 		String projId, 
 		ResourceRefModel resourceRef
 	) throws NotFoundException, DuplicateException, ValidationException {
-		PersistenceManager pm = this.getPersistenceManager();
-		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();		
-		Activity project = null;
+		String idempotencyKey = this.getIdempotencyKey(request, "addResourceRef", compId + "/" + projId);
+		ResourceRefModel _resourceRef = this.idempotencyCache.begin(
+			idempotencyKey,
+			IdempotencyCache.hash(resourceRef.getResourceId(), resourceRef.getResourceName()),
+			ResourceRefModel.class
+		);
+		if(_resourceRef != null) {
+			logger.info("addResourceRef(" + compId + ", " + projId + ") replayed -> " + _resourceRef);
+			return _resourceRef;
+		}
 		try {
-			project = activitySegment.getActivity(projId);
-		} catch(Exception ignore) {}
-		if(project == null || Boolean.TRUE.equals(project.isDisabled())) {
-			throw new NotFoundException("no project with ID <" + projId + "> found.");
+			boolean admitted = this.lightOperations.acquire();
+			QueryTrace trace = QueryTrace.begin("addResourceRef", this.slowCallThreshold);
+			try {
+				snapshots.beginWrite(compId);
+				PersistenceManager pm = this.getPersistenceManager();
+				org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();		
+				Activity project = this.findActivity(activitySegment, projId);
+				if(project == null || Boolean.TRUE.equals(project.isDisabled())) {
+					throw new NotFoundException("no project with ID <" + projId + "> found.");
+				}
+				if(resourceRef.getId() != null) {
+					ResourceAssignment resourceAssignment = this.findResourceAssignment(project, resourceRef.getId());
+					if(resourceAssignment != null) {
+						throw new DuplicateException("resource ref with ID " + resourceRef.getId() + " exists already.");
+					} else {
+						throw new ValidationException("resource ref <" + resourceRef.getId() + "> contains an ID generated on the client. This is not allowed.");
+					}
+				}
+				Resource resource = this.findResource(activitySegment, resourceRef.getResourceId());
+				// @TODO test for existing resource
+//				if(resource == null || Boolean.TRUE.equals(resource.isDisabled())) {
+//					throw new NotFoundException("no resource with ID <" + resourceRef.getId() + "> found.");
+//				}
+				try {
+					ResourceAssignment resourceAssignment = pm.newInstance(ResourceAssignment.class);
+					pm.currentTransaction().begin();
+					resourceAssignment.setName(
+						(resourceRef.getResourceName() == null ? "" : resourceRef.getResourceName())
+					);
+					resourceAssignment.setResource(resource);
+					resourceAssignment.setResourceRole(ActivitiesHelper.RESOURCE_ROLE_MEMBER);
+					project.addAssignedResource(
+						Utils.getUidAsString(),
+						resourceAssignment
+					);
+					pm.currentTransaction().commit();
+					_resourceRef = this.mapToResourceRef(resourceAssignment);
+					this.onResourceRefsChanged(compId, projId, 1);
+				} catch(Exception e) {
+					new ServiceException(e).log();
+					try {
+						pm.currentTransaction().rollback();
+					} catch(Exception ignore) {}
+					throw new InternalServerErrorException();
+				}
+				return _resourceRef;
+			} finally {
+				snapshots.endWrite(compId);
+				QueryTrace.end(trace);
+				this.lightOperations.release(admitted);
+			}
+		} finally {
+			this.idempotencyCache.end(idempotencyKey, _resourceRef);
 		}
-		if(resourceRef.getId() != null) {
-			ResourceAssignment resourceAssignment = project.getAssignedResource(resourceRef.getId());
-			if(resourceAssignment != null) {
-				throw new DuplicateException("resource ref with ID " + resourceRef.getId() + " exists already.");
-			} else {
-				throw new ValidationException("resource ref <" + resourceRef.getId() + "> contains an ID generated on the client. This is not allowed.");
+	}
+
+	/* (non-Javadoc)
+	 * @see org.opentdc.wtt.ServiceProvider#removeResource(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public void removeResourceRef(
+		String compId,
+		String projId, 
+		String resourceId
+	) throws NotFoundException, InternalServerErrorException {
+		boolean admitted = this.lightOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("removeResourceRef", this.slowCallThreshold);
+		try {
+			snapshots.beginWrite(compId);
+			PersistenceManager pm = this.getPersistenceManager();
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();		
+			Activity project = this.findActivity(activitySegment, projId);
+			if(project == null || Boolean.TRUE.equals(project.isDisabled())) {
+				throw new NotFoundException("no project with ID <" + projId + "> found.");
+			}
+			ResourceAssignment resourceAssignment = this.findResourceAssignment(project, resourceId);
+			if(resourceAssignment == null || Boolean.TRUE.equals(resourceAssignment.isDisabled())) {
+				throw new NotFoundException("no resource with ID <" + resourceId + "> found.");
 			}
+			try {
+				pm.currentTransaction().begin();
+				resourceAssignment.setDisabled(true);
+				pm.currentTransaction().commit();
+				this.onResourceRefsChanged(compId, projId, -1);
+			} catch(Exception e) {
+				new ServiceException(e).log();
+				try {
+					pm.currentTransaction().rollback();
+				} catch(Exception ignore) {}
+				throw new InternalServerErrorException();
+			}
+		} finally {
+			snapshots.endWrite(compId);
+			QueryTrace.end(trace);
+			this.lightOperations.release(admitted);
 		}
-		Resource resource = null;
+	}
+
+	/******************************** archive *****************************************/
+	/**
+	 * Export a company with its project hierarchy and resource refs as wtt
+	 * archive, i.e. one JSON encoded WttArchiveRecord per line. Records are
+	 * written parents before children. Disabled projects and resource refs
+	 * are not exported. The archive is first written to a temporary file so
+	 * that it can be rewritten if the company changes meanwhile and that the
+	 * admission permit is not held while the client reads it.
+	 * 
+	 * @param compId
+	 * @param out
+	 * @throws NotFoundException
+	 * @throws IOException
+	 */
+	public void exportCompany(
+		String compId,
+		Writer out
+	) throws NotFoundException, IOException {
+		File buffer = File.createTempFile("wtt-export-", ".jsonl");
 		try {
-			resource = activitySegment.getResource(resourceRef.getResourceId());
-		} catch(Exception ignore) {}
-		// @TODO test for existing resource
-//		if(resource == null || Boolean.TRUE.equals(resource.isDisabled())) {
-//			throw new NotFoundException("no resource with ID <" + resourceRef.getId() + "> found.");
-//		}
+			// Rewrite the archive if the company changed while it was written
+			for(int attempt = 1; ; attempt++) {
+				Writer bufferOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(buffer), StandardCharsets.UTF_8));
+				boolean consistent = false;
+				try {
+					consistent = this.writeCompany(compId, bufferOut);
+				} finally {
+					bufferOut.close();
+				}
+				if(consistent) {
+					break;
+				}
+				this.checkReadAttempt(compId, attempt);
+			}
+			Reader in = new InputStreamReader(new FileInputStream(buffer), StandardCharsets.UTF_8);
+			try {
+				char[] chars = new char[8192];
+				int length = 0;
+				while((length = in.read(chars)) >= 0) {
+					out.write(chars, 0, length);
+				}
+			} finally {
+				in.close();
+			}
+			out.flush();
+		} finally {
+			if(!buffer.delete()) {
+				logger.warning("exportCompany() could not delete " + buffer);
+			}
+		}
+	}
+
+	/**
+	 * Write company as wtt archive while the hierarchy is walked.
+	 * 
+	 * @param compId
+	 * @param out
+	 * @return false if the company changed while it was written
+	 * @throws NotFoundException
+	 * @throws IOException
+	 */
+	protected boolean writeCompany(
+		String compId,
+		Writer out
+	) throws NotFoundException, IOException {
+		boolean admitted = this.heavyOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("exportCompany", this.slowCallThreshold);
+		long version = snapshots.beginRead(compId);
+		try {
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
+			ActivityTracker customerProjectGroup = this.findActivityTracker(activitySegment, compId);
+			if(customerProjectGroup == null || Boolean.TRUE.equals(customerProjectGroup.isDisabled())) {
+				throw new NotFoundException("no company with ID <" + compId + "> found.");
+			}
+			CompanyModel company = this.mapToCompany(customerProjectGroup);
+			WttArchiveRecord record = new WttArchiveRecord();
+			record.setType(WttArchiveRecord.TYPE_COMPANY);
+			record.setId(company.getId());
+			record.setTitle(company.getTitle());
+			record.setDescription(company.getDescription());
+			record.setOrgId(company.getOrgId());
+			this.writeRecord(out, record);
+			long startedAt = QueryTrace.start();
+			List<Activity> customerProjects = QueryTrace.fetch("getCustomerProjects", startedAt, ActivitiesHelper.getCustomerProjects(customerProjectGroup, true));
+			int count = 0;
+			for(Activity customerProject: customerProjects) {
+				count += this.exportProject(activitySegment, customerProject, null, out);
+			}
+			logger.info("exportCompany(" + compId + ") -> " + count + " projects");
+			return snapshots.isUnchanged(compId, version);
+		} finally {
+			snapshots.endRead(compId);
+			QueryTrace.end(trace);
+			this.heavyOperations.release(admitted);
+		}
+	}
+
+	/**
+	 * Export project, its resource refs and its sub-projects.
+	 * 
+	 * @param activitySegment
+	 * @param project
+	 * @param parentId
+	 * @param out
+	 * @return number of exported projects
+	 * @throws IOException
+	 */
+	protected int exportProject(
+		org.opencrx.kernel.activity1.jmi1.Segment activitySegment,
+		Activity project,
+		String parentId,
+		Writer out
+	) throws IOException {
+		if(Boolean.TRUE.equals(project.isDisabled())) {
+			return 0;
+		}
+		ProjectModel projectModel = this.mapToProject(project);
+		WttArchiveRecord record = new WttArchiveRecord();
+		record.setType(WttArchiveRecord.TYPE_PROJECT);
+		record.setId(projectModel.getId());
+		record.setParentId(parentId);
+		record.setTitle(projectModel.getTitle());
+		record.setDescription(projectModel.getDescription());
+		this.writeRecord(out, record);
+		long startedAt = QueryTrace.start();
+		List<ResourceAssignment> resourceAssignments = QueryTrace.fetch("getProjectResources", startedAt, ActivitiesHelper.getProjectResources(project));
+		for(ResourceAssignment resourceAssignment: resourceAssignments) {
+			if(Boolean.TRUE.equals(resourceAssignment.isDisabled())) {
+				continue;
+			}
+			ResourceRefModel resourceRef = this.mapToResourceRef(resourceAssignment);
+			record = new WttArchiveRecord();
+			record.setType(WttArchiveRecord.TYPE_RESOURCE_REF);
+			record.setId(resourceRef.getId());
+			record.setParentId(projectModel.getId());
+			record.setResourceId(resourceRef.getResourceId());
+			record.setResourceName(resourceRef.getResourceName());
+			this.writeRecord(out, record);
+		}
+		int count = 1;
+		for(Activity subproject: this.findSubprojects(activitySegment, project, 0, Integer.MAX_VALUE)) {
+			count += this.exportProject(activitySegment, subproject, projectModel.getId(), out);
+		}
+		return count;
+	}
+
+	/**
+	 * Write archive record as one line.
+	 * 
+	 * @param out
+	 * @param record
+	 * @throws IOException
+	 */
+	protected void writeRecord(
+		Writer out,
+		WttArchiveRecord record
+	) throws IOException {
+		out.write(gson.toJson(record));
+		out.write('\n');
+	}
+
+	/**
+	 * Import a wtt archive written by exportCompany() as new company. All
+	 * objects get new IDs. The archive is read in chunks of
+	 * wtt.archive.chunkSize records and the resource refs of a chunk are
+	 * committed together. Only the current chunk and the mapping of exported
+	 * to new project IDs are kept in memory. Resources are looked up by ID
+	 * and then by name. The import runs on a persistence manager of its own.
+	 * If it fails, the new company is disabled so that a retry does not leave
+	 * a second copy behind.
+	 * 
+	 * @param in
+	 * @param orgId the organisation of the new company or null to use the one of the archive
+	 * @return the new company
+	 * @throws ValidationException if the archive is invalid or refers to an unknown resource
+	 * @throws IOException
+	 */
+	public CompanyModel importCompany(
+		Reader in,
+		String orgId
+	) throws ValidationException, IOException {
+		boolean admitted = this.heavyOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("importCompany", this.slowCallThreshold);
+		PersistenceManager pm = null;
 		try {
-			ResourceAssignment resourceAssignment = pm.newInstance(ResourceAssignment.class);
+			pm = this.newPersistenceManager();
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment(pm);
+			BufferedReader reader = new BufferedReader(in);
+			Map<String,String> projectIds = new HashMap<String,String>();
+			ActivityTracker customerProjectGroup = null;
+			List<WttArchiveRecord> records = new ArrayList<WttArchiveRecord>();
+			List<Integer> lineNumbers = new ArrayList<Integer>();
+			int lineNumber = 0;
+			boolean completed = false;
+			try {
+				while(true) {
+					// Read and parse a chunk before starting a transaction so that
+					// no transaction is open while waiting for the client
+					records.clear();
+					lineNumbers.clear();
+					String line = null;
+					while(records.size() < this.archiveChunkSize && (line = reader.readLine()) != null) {
+						lineNumber++;
+						if(line.trim().isEmpty()) {
+							continue;
+						}
+						try {
+							records.add(gson.fromJson(line, WttArchiveRecord.class));
+						} catch(JsonSyntaxException e) {
+							throw new ValidationException("archive line " + lineNumber + " is not a valid record: " + e.getMessage());
+						}
+						lineNumbers.add(lineNumber);
+					}
+					if(records.isEmpty()) {
+						break;
+					}
+					for(int i = 0; i < records.size(); i++) {
+						WttArchiveRecord record = records.get(i);
+						int recordLine = lineNumbers.get(i);
+						if(customerProjectGroup == null) {
+							if(!WttArchiveRecord.TYPE_COMPANY.equals(record.getType())) {
+								throw new ValidationException("archive must start with a company record.");
+							}
+							CompanyModel company = new CompanyModel();
+							company.setTitle(record.getTitle());
+							company.setDescription(record.getDescription());
+							company.setOrgId(orgId == null ? record.getOrgId() : orgId);
+							customerProjectGroup = this.findActivityTracker(
+								activitySegment,
+								this.createCompany(null, company).getId()
+							);
+						} else if(WttArchiveRecord.TYPE_PROJECT.equals(record.getType())) {
+							// Projects are created in their own transaction
+							if(pm.currentTransaction().isActive()) {
+								pm.currentTransaction().commit();
+							}
+							Activity parentProject = null;
+							if(record.getParentId() != null) {
+								parentProject = this.findActivity(activitySegment, projectIds.get(record.getParentId()));
+								if(parentProject == null) {
+									throw new ValidationException("archive line " + recordLine + ": parent project <" + record.getParentId() + "> not found.");
+								}
+							}
+							Activity project = ActivitiesHelper.createCustomerProject(
+								pm,
+								customerProjectGroup,
+								record.getTitle(),
+								record.getDescription(),
+								null,
+								new Date(),
+								new Date(),
+								ActivitiesHelper.ACTIVITY_PRIORITY_NA,
+								parentProject
+							);
+							if(project == null) {
+								throw new InternalServerErrorException("archive line " + recordLine + ": project could not be created.");
+							}
+							projectIds.put(record.getId(), project.refGetPath().getLastSegment().toClassicRepresentation());
+						} else if(WttArchiveRecord.TYPE_RESOURCE_REF.equals(record.getType())) {
+							Activity project = this.findActivity(activitySegment, projectIds.get(record.getParentId()));
+							if(project == null) {
+								throw new ValidationException("archive line " + recordLine + ": project <" + record.getParentId() + "> not found.");
+							}
+							Resource resource = this.findResource(activitySegment, record.getResourceId());
+							if(resource == null && record.getResourceName() != null && !record.getResourceName().isEmpty()) {
+								resource = this.findResourceByName(activitySegment, record.getResourceName());
+							}
+							if(resource == null) {
+								throw new ValidationException("archive line " + recordLine + ": resource <" + record.getResourceId() + "> with name <" + record.getResourceName() + "> not found.");
+							}
+							ResourceAssignment resourceAssignment = pm.newInstance(ResourceAssignment.class);
+							if(!pm.currentTransaction().isActive()) {
+								pm.currentTransaction().begin();
+							}
+							resourceAssignment.setName(record.getResourceName() == null ? "" : record.getResourceName());
+							resourceAssignment.setResource(resource);
+							resourceAssignment.setResourceRole(ActivitiesHelper.RESOURCE_ROLE_MEMBER);
+							project.addAssignedResource(
+								Utils.getUidAsString(),
+								resourceAssignment
+							);
+						} else {
+							throw new ValidationException("archive line " + recordLine + " has unknown type <" + record.getType() + ">.");
+						}
+					}
+					// Resource refs of a chunk are committed together
+					if(pm.currentTransaction().isActive()) {
+						pm.currentTransaction().commit();
+					}
+				}
+				completed = true;
+			} finally {
+				if(pm.currentTransaction().isActive()) {
+					try {
+						pm.currentTransaction().rollback();
+					} catch(Exception ignore) {}
+				}
+				if(!completed) {
+					logger.warning("importCompany() failed after line " + lineNumber + ", the company created before is disabled.");
+					if(customerProjectGroup != null) {
+						this.disableImportedCompany(pm, customerProjectGroup);
+					}
+				}
+			}
+			if(customerProjectGroup == null) {
+				throw new ValidationException("archive is empty.");
+			}
+			CompanyModel _company = this.mapToCompany(customerProjectGroup);
+			logger.info("importCompany() -> " + _company + " with " + projectIds.size() + " projects");
+			return _company;
+		} finally {
+			if(pm != null) {
+				pm.close();
+			}
+			QueryTrace.end(trace);
+			this.heavyOperations.release(admitted);
+		}
+	}
+
+	/**
+	 * Disable company and its projects after a failed import. Failures are
+	 * logged only so that the cause of the failed import is reported.
+	 * 
+	 * @param pm
+	 * @param customerProjectGroup
+	 */
+	protected void disableImportedCompany(
+		PersistenceManager pm,
+		ActivityTracker customerProjectGroup
+	) {
+		String compId = customerProjectGroup.refGetPath().getLastSegment().toClassicRepresentation();
+		try {
+			snapshots.beginWrite(compId);
 			pm.currentTransaction().begin();
-			resourceAssignment.setName(
-				(resourceRef.getResourceName() == null ? "" : resourceRef.getResourceName())
-			);
-			resourceAssignment.setResource(resource);
-			resourceAssignment.setResourceRole(ActivitiesHelper.RESOURCE_ROLE_MEMBER);
-			project.addAssignedResource(
-				Utils.getUidAsString(),
-				resourceAssignment
-			);
+			customerProjectGroup.setDisabled(true);
+			long startedAt = QueryTrace.start();
+			List<Activity> customerProjects = QueryTrace.fetch("getCustomerProjects", startedAt, ActivitiesHelper.getCustomerProjects(customerProjectGroup, false));
+			for(Activity project: customerProjects) {
+				project.setDisabled(true);
+			}
 			pm.currentTransaction().commit();
-			resourceRef = this.mapToResourceRef(resourceAssignment);
+			this.aggregates.remove(compId);
 		} catch(Exception e) {
 			new ServiceException(e).log();
 			try {
 				pm.currentTransaction().rollback();
 			} catch(Exception ignore) {}
-			throw new InternalServerErrorException();
+		} finally {
+			snapshots.endWrite(compId);
 		}
-		return resourceRef;
 	}
 
-	/* (non-Javadoc)
-	 * @see org.opentdc.wtt.ServiceProvider#removeResource(java.lang.String, java.lang.String)
+	/******************************** archival *****************************************/
+	/**
+	 * Find the archive tracker of a company. Archived projects are assigned
+	 * to this tracker instead of the company's tracker and their IS_CHILD_OF
+	 * links are changed to archived parent links, see isArchivedParentLink().
+	 * This way neither the company's project list nor the subproject queries
+	 * see them.
+	 * 
+	 * @param activitySegment
+	 * @param compId
+	 * @param create create the tracker if it does not exist
+	 * @return the tracker or null if it does not exist
 	 */
-	@Override
-	public void removeResourceRef(
+	protected ActivityTracker findArchiveTracker(
+		org.opencrx.kernel.activity1.jmi1.Segment activitySegment,
 		String compId,
-		String projId, 
-		String resourceId
-	) throws NotFoundException, InternalServerErrorException {
-		PersistenceManager pm = this.getPersistenceManager();
-		org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();		
-		Activity project = null;
-		try {
-			project = activitySegment.getActivity(projId);
-		} catch(Exception ignore) {}
-		if(project == null || Boolean.TRUE.equals(project.isDisabled())) {
-			throw new NotFoundException("no project with ID <" + projId + "> found.");
+		boolean create
+	) {
+		PersistenceManager pm = JDOHelper.getPersistenceManager(activitySegment);
+		ActivityTrackerQuery archiveTrackerQuery = (ActivityTrackerQuery)pm.newQuery(ActivityTracker.class);
+		archiveTrackerQuery.name().equalTo(ARCHIVE_TRACKER_PREFIX + compId);
+		long startedAt = QueryTrace.start();
+		List<ActivityTracker> archiveTrackers = QueryTrace.fetch("ActivityTrackerQuery(archive)", startedAt, activitySegment.getActivityTracker(archiveTrackerQuery), 0, 1);
+		if(!archiveTrackers.isEmpty()) {
+			return archiveTrackers.iterator().next();
 		}
-		ResourceAssignment resourceAssignment = null;
+		if(!create) {
+			return null;
+		}
+		ActivityTracker archiveTracker = pm.newInstance(ActivityTracker.class);
 		try {
-			resourceAssignment = project.getAssignedResource(resourceId);
-		} catch(Exception ignore) {}
-		if(resourceAssignment == null || Boolean.TRUE.equals(resourceAssignment.isDisabled())) {
-			throw new NotFoundException("no resource with ID <" + resourceId + "> found.");
+			pm.currentTransaction().begin();
+			archiveTracker.setName(ARCHIVE_TRACKER_PREFIX + compId);
+			archiveTracker.setDescription("Archived projects of company " + compId);
+			// Keep the archive out of the company lists
+			archiveTracker.setDisabled(true);
+			activitySegment.addActivityTracker(
+				Utils.getUidAsString(),
+				archiveTracker
+			);
+			pm.currentTransaction().commit();
+		} catch(Exception e) {
+			new ServiceException(e).log();
+			try {
+				pm.currentTransaction().rollback();
+			} catch(Exception ignore) {}
+			throw new InternalServerErrorException(e.getMessage());
+		}
+		return archiveTracker;
+	}
+
+	/**
+	 * Find the activity holding the archived resource refs of a company's
+	 * active projects. Resource refs cannot be moved, so archived ones are
+	 * copied to this activity with their ID and the ID of their project as
+	 * description. It is assigned to the archive tracker and disabled.
+	 * 
+	 * @param archiveTracker
+	 * @param create create the activity if it does not exist
+	 * @return the activity or null if it does not exist
+	 */
+	protected Activity findArchivedResourceRefs(
+		ActivityTracker archiveTracker,
+		boolean create
+	) {
+		PersistenceManager pm = JDOHelper.getPersistenceManager(archiveTracker);
+		ActivityQuery holderQuery = (ActivityQuery)pm.newQuery(Activity.class);
+		holderQuery.name().equalTo(ARCHIVED_RESOURCE_REFS_NAME);
+		long startedAt = QueryTrace.start();
+		List<Activity> holders = QueryTrace.fetch("ActivityQuery(archived resource refs)", startedAt, archiveTracker.getFilteredActivity(holderQuery), 0, 1);
+		if(!holders.isEmpty()) {
+			return holders.iterator().next();
+		}
+		if(!create) {
+			return null;
+		}
+		Activity holder = ActivitiesHelper.createCustomerProject(
+			pm,
+			archiveTracker,
+			ARCHIVED_RESOURCE_REFS_NAME,
+			"Archived resource refs of active projects",
+			null,
+			new Date(),
+			new Date(),
+			ActivitiesHelper.ACTIVITY_PRIORITY_NA,
+			null
+		);
+		if(holder == null) {
+			throw new InternalServerErrorException("archived resource refs could not be created.");
 		}
 		try {
 			pm.currentTransaction().begin();
-			resourceAssignment.setDisabled(true);
+			holder.setDisabled(true);
 			pm.currentTransaction().commit();
 		} catch(Exception e) {
 			new ServiceException(e).log();
 			try {
 				pm.currentTransaction().rollback();
 			} catch(Exception ignore) {}
-			throw new InternalServerErrorException();
+			throw new InternalServerErrorException(e.getMessage());
+		}
+		return holder;
+	}
+
+	/**
+	 * Test whether link is a parent link changed by the archival. The
+	 * archival changes IS_CHILD_OF links to RELATES_TO links and prefixes
+	 * their description with ARCHIVED_LINK_MARKER, so that RELATES_TO links
+	 * created otherwise are not taken for archived parent links.
+	 * 
+	 * @param link
+	 * @return
+	 */
+	protected boolean isArchivedParentLink(
+		ActivityLinkTo link
+	) {
+		return link.getActivityLinkType() == ACTIVITY_LINK_TYPE_ARCHIVED_CHILD_OF &&
+			link.getDescription() != null &&
+			link.getDescription().startsWith(ARCHIVED_LINK_MARKER);
+	}
+
+	/**
+	 * Get archived parent of an activity.
+	 * 
+	 * @param activity
+	 * @return the parent or null if the activity has no archived parent link
+	 */
+	protected Activity getArchivedParent(
+		Activity activity
+	) {
+		for(ActivityLinkTo link: this.getActivityLinks(activity)) {
+			if(this.isArchivedParentLink(link)) {
+				return this.getLinkTo(link);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Move activity from one tracker to another and archive or restore its
+	 * parent links. Must be called within a transaction.
+	 * 
+	 * @param activity
+	 * @param from
+	 * @param to
+	 * @param archive true to archive the parent links, false to restore them
+	 */
+	protected void moveActivity(
+		Activity activity,
+		ActivityTracker from,
+		ActivityTracker to,
+		boolean archive
+	) {
+		ActivityGroupAssignment assignedGroup = this.findGroupAssignment(activity, from);
+		if(assignedGroup != null) {
+			assignedGroup.setActivityGroup(to);
+		}
+		for(ActivityLinkTo link: this.getActivityLinks(activity)) {
+			if(archive && link.getActivityLinkType() == ActivitiesHelper.ACTIVITY_LINK_TYPE_IS_CHILD_OF) {
+				link.setActivityLinkType(ACTIVITY_LINK_TYPE_ARCHIVED_CHILD_OF);
+				link.setDescription(ARCHIVED_LINK_MARKER + (link.getDescription() == null ? "" : link.getDescription()));
+			} else if(!archive && this.isArchivedParentLink(link)) {
+				String description = link.getDescription().substring(ARCHIVED_LINK_MARKER.length());
+				link.setActivityLinkType(ActivitiesHelper.ACTIVITY_LINK_TYPE_IS_CHILD_OF);
+				link.setDescription(description.isEmpty() ? null : description);
+			}
+		}
+	}
+
+	/**
+	 * Copy resource ref with its ID to another activity and delete the
+	 * original. Must be called within a transaction.
+	 * 
+	 * @param resourceAssignment
+	 * @param to
+	 * @param disabled
+	 * @param description
+	 * @return the copy
+	 */
+	protected ResourceAssignment moveResourceAssignment(
+		ResourceAssignment resourceAssignment,
+		Activity to,
+		boolean disabled,
+		String description
+	) {
+		PersistenceManager pm = JDOHelper.getPersistenceManager(to);
+		ResourceAssignment copy = pm.newInstance(ResourceAssignment.class);
+		copy.setName(resourceAssignment.getName());
+		copy.setResource(resourceAssignment.getResource());
+		copy.setResourceRole(resourceAssignment.getResourceRole());
+		copy.setDescription(description);
+		copy.setDisabled(disabled);
+		to.addAssignedResource(
+			resourceAssignment.refGetPath().getLastSegment().toClassicRepresentation(),
+			copy
+		);
+		resourceAssignment.refDelete();
+		return copy;
+	}
+
+	/**
+	 * Archive the projects and resource refs of all wtt companies which are
+	 * disabled for longer than the retention period. Deleted companies are
+	 * included, i.e. their projects are archived as well. The resource refs
+	 * of archived projects stay with their project, those of active projects
+	 * are moved to findArchivedResourceRefs(). Runs periodically if
+	 * wtt.archival.retentionDays is set.
+	 * 
+	 * The archival runs on a persistence manager of its own. A heavy permit
+	 * is taken per company, a company is skipped if none is available.
+	 * 
+	 * @param retention in milliseconds
+	 * @return number of archived projects and resource refs
+	 */
+	public int archiveDisabled(
+		long retention
+	) {
+		QueryTrace trace = QueryTrace.begin("archiveDisabled", this.slowCallThreshold);
+		PersistenceManager pm = null;
+		try {
+			pm = this.newPersistenceManager();
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment(pm);
+			Date cutoff = new Date(System.currentTimeMillis() - retention);
+			int count = 0;
+			// getCustomerProjectGroups() skips deleted companies, hence query the
+			// trackers with a customer, i.e. the wtt companies, deleted or not
+			ActivityTrackerQuery trackerQuery = (ActivityTrackerQuery)pm.newQuery(ActivityTracker.class);
+			trackerQuery.thereExistsAssignedAccount().accountRole().equalTo(ActivitiesHelper.ACCOUNT_ROLE_CUSTOMER);
+			long startedAt = QueryTrace.start();
+			List<ActivityTracker> trackers = QueryTrace.fetch("ActivityTrackerQuery(customer)", startedAt, activitySegment.getActivityTracker(trackerQuery));
+			for(ActivityTracker customerProjectGroup: trackers) {
+				if(customerProjectGroup.getName() != null && customerProjectGroup.getName().startsWith(ARCHIVE_TRACKER_PREFIX)) {
+					continue;
+				}
+				try {
+					count += this.archiveCompany(activitySegment, customerProjectGroup, cutoff);
+				} catch(ServiceOverloadedException e) {
+					logger.info("archiveDisabled() skipped company <" + customerProjectGroup.refGetPath().getLastSegment().toClassicRepresentation() + ">: " + e.getMessage());
+				}
+			}
+			logger.info("archiveDisabled(" + retention + ") -> " + count + " projects and resource refs");
+			return count;
+		} finally {
+			if(pm != null) {
+				pm.close();
+			}
+			QueryTrace.end(trace);
+		}
+	}
+
+	/**
+	 * Archive the expired projects and resource refs of a company. Objects
+	 * are moved in transactions of wtt.archive.chunkSize objects.
+	 * 
+	 * @param activitySegment
+	 * @param customerProjectGroup
+	 * @param cutoff objects disabled before are archived
+	 * @return number of archived projects and resource refs
+	 * @throws ServiceOverloadedException if no heavy permit is available
+	 */
+	protected int archiveCompany(
+		org.opencrx.kernel.activity1.jmi1.Segment activitySegment,
+		ActivityTracker customerProjectGroup,
+		Date cutoff
+	) throws ServiceOverloadedException {
+		PersistenceManager pm = JDOHelper.getPersistenceManager(activitySegment);
+		String compId = customerProjectGroup.refGetPath().getLastSegment().toClassicRepresentation();
+		boolean admitted = this.heavyOperations.acquire();
+		try {
+			snapshots.beginWrite(compId);
+			// Collect first, moving changes the lists being iterated
+			List<Activity> expired = new ArrayList<Activity>();
+			List<ResourceAssignment> expiredRefs = new ArrayList<ResourceAssignment>();
+			long startedAt = QueryTrace.start();
+			List<Activity> customerProjects = QueryTrace.fetch("getCustomerProjects", startedAt, ActivitiesHelper.getCustomerProjects(customerProjectGroup, false));
+			for(Activity customerProject: customerProjects) {
+				if(Boolean.TRUE.equals(customerProject.isDisabled())) {
+					if(customerProject.getModifiedAt().before(cutoff)) {
+						expired.add(customerProject);
+					}
+				} else {
+					startedAt = QueryTrace.start();
+					List<ResourceAssignment> resourceAssignments = QueryTrace.fetch("getProjectResources", startedAt, ActivitiesHelper.getProjectResources(customerProject));
+					for(ResourceAssignment resourceAssignment: resourceAssignments) {
+						if(Boolean.TRUE.equals(resourceAssignment.isDisabled()) && resourceAssignment.getModifiedAt().before(cutoff)) {
+							expiredRefs.add(resourceAssignment);
+						}
+					}
+				}
+			}
+			if(expired.isEmpty() && expiredRefs.isEmpty()) {
+				return 0;
+			}
+			ActivityTracker archiveTracker = this.findArchiveTracker(activitySegment, compId, true);
+			Activity archivedResourceRefs = expiredRefs.isEmpty() ? null : this.findArchivedResourceRefs(archiveTracker, true);
+			int count = 0;
+			int chunk = 0;
+			try {
+				for(Activity project: expired) {
+					if(chunk == 0) {
+						pm.currentTransaction().begin();
+					}
+					this.moveActivity(project, customerProjectGroup, archiveTracker, true);
+					count++;
+					if(++chunk >= this.archiveChunkSize) {
+						pm.currentTransaction().commit();
+						chunk = 0;
+					}
+				}
+				for(ResourceAssignment resourceAssignment: expiredRefs) {
+					if(chunk == 0) {
+						pm.currentTransaction().begin();
+					}
+					this.moveResourceAssignment(
+						resourceAssignment,
+						archivedResourceRefs,
+						true,
+						resourceAssignment.refGetPath().getParent().getParent().getLastSegment().toClassicRepresentation()
+					);
+					count++;
+					if(++chunk >= this.archiveChunkSize) {
+						pm.currentTransaction().commit();
+						chunk = 0;
+					}
+				}
+				if(chunk > 0) {
+					pm.currentTransaction().commit();
+				}
+			} catch(Exception e) {
+				new ServiceException(e).log();
+				try {
+					pm.currentTransaction().rollback();
+				} catch(Exception ignore) {}
+				throw new InternalServerErrorException(e.getMessage());
+			}
+			logger.info("archiveCompany(" + compId + ") -> " + expired.size() + " projects, " + expiredRefs.size() + " resource refs");
+			return count;
+		} finally {
+			snapshots.endWrite(compId);
+			this.heavyOperations.release(admitted);
+		}
+	}
+
+	/**
+	 * Restore an archived project and the archived sub-projects which were
+	 * deleted together with it. The projects are moved back to the company
+	 * and enabled again. Sub-projects deleted on their own before the project
+	 * stay archived and can be restored separately afterwards.
+	 * 
+	 * @param compId
+	 * @param projId
+	 * @return the restored project
+	 * @throws NotFoundException if the project is not archived
+	 * @throws ValidationException if the parent project is not active
+	 */
+	public ProjectModel restoreProject(
+		String compId,
+		String projId
+	) throws NotFoundException, ValidationException {
+		boolean admitted = this.heavyOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("restoreProject", this.slowCallThreshold);
+		try {
+			snapshots.beginWrite(compId);
+			PersistenceManager pm = this.getPersistenceManager();
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
+			ActivityTracker customerProjectGroup = this.findActivityTracker(activitySegment, compId);
+			if(customerProjectGroup == null || Boolean.TRUE.equals(customerProjectGroup.isDisabled())) {
+				throw new NotFoundException("no company with ID <" + compId + "> found.");
+			}
+			ActivityTracker archiveTracker = this.findArchiveTracker(activitySegment, compId, false);
+			Activity project = this.findActivity(activitySegment, projId);
+			if(archiveTracker == null || project == null || this.findGroupAssignment(project, archiveTracker) == null) {
+				throw new NotFoundException("no archived project with ID <" + projId + "> found.");
+			}
+			Activity archivedResourceRefs = this.findArchivedResourceRefs(archiveTracker, false);
+			if(archivedResourceRefs != null && archivedResourceRefs.refGetPath().equals(project.refGetPath())) {
+				throw new NotFoundException("no archived project with ID <" + projId + "> found.");
+			}
+			for(ActivityLinkTo link: this.getActivityLinks(project)) {
+				if(this.isArchivedParentLink(link)) {
+					Activity parentProject = this.getLinkTo(link);
+					if(parentProject == null || Boolean.TRUE.equals(parentProject.isDisabled())) {
+						throw new ValidationException("parent of project <" + projId + "> must be restored first.");
+					}
+				}
+			}
+			try {
+				pm.currentTransaction().begin();
+				this.restoreActivity(activitySegment, project, customerProjectGroup, archiveTracker);
+				pm.currentTransaction().commit();
+			} catch(Exception e) {
+				new ServiceException(e).log();
+				try {
+					pm.currentTransaction().rollback();
+				} catch(Exception ignore) {}
+				throw new InternalServerErrorException(e.getMessage());
+			}
+			this.aggregates.remove(compId);
+			ProjectModel _p = this.mapToProject(project);
+			logger.info("restoreProject(" + compId + ", " + projId + ") -> " + _p);
+			return _p;
+		} finally {
+			snapshots.endWrite(compId);
+			QueryTrace.end(trace);
+			this.heavyOperations.release(admitted);
+		}
+	}
+
+	/**
+	 * Restore activity and its archived sub-activities. Must be called within
+	 * a transaction. A cascading delete disables the sub-activities after
+	 * their parent, archival does not touch the activities' modifiedAt. So a
+	 * sub-activity modified before its parent was deleted on its own and is
+	 * not restored.
+	 * 
+	 * @param activitySegment
+	 * @param activity
+	 * @param customerProjectGroup
+	 * @param archiveTracker
+	 */
+	protected void restoreActivity(
+		org.opencrx.kernel.activity1.jmi1.Segment activitySegment,
+		Activity activity,
+		ActivityTracker customerProjectGroup,
+		ActivityTracker archiveTracker
+	) {
+		PersistenceManager pm = JDOHelper.getPersistenceManager(activitySegment);
+		ActivityQuery subprojectsQuery = (ActivityQuery)pm.newQuery(Activity.class);
+		subprojectsQuery.thereExistsActivityLinkTo().activityLinkType().equalTo(ACTIVITY_LINK_TYPE_ARCHIVED_CHILD_OF);
+		subprojectsQuery.thereExistsActivityLinkTo().thereExistsLinkTo().equalTo(activity);
+		long startedAt = QueryTrace.start();
+		List<Activity> subprojects = QueryTrace.fetch("ActivityQuery(archived parent)", startedAt, activitySegment.getActivity(subprojectsQuery));
+		Date deletedAt = activity.getModifiedAt();
+		this.moveActivity(activity, archiveTracker, customerProjectGroup, false);
+		activity.setDisabled(false);
+		for(Activity subproject: subprojects) {
+			// Skip activities which only relate to the activity
+			Activity parent = this.getArchivedParent(subproject);
+			if(parent == null || !parent.refGetPath().equals(activity.refGetPath())) {
+				continue;
+			}
+			if(deletedAt == null || subproject.getModifiedAt() == null || !subproject.getModifiedAt().before(deletedAt)) {
+				this.restoreActivity(activitySegment, subproject, customerProjectGroup, archiveTracker);
+			}
+		}
+	}
+
+	/**
+	 * Restore an archived resource ref of an active project. The resource
+	 * ref is moved back to its project with its ID and enabled again.
+	 * 
+	 * @param compId
+	 * @param projId
+	 * @param resourceRefId
+	 * @return the restored resource ref
+	 * @throws NotFoundException if the project is not active or the resource ref is not archived
+	 */
+	public ResourceRefModel restoreResourceRef(
+		String compId,
+		String projId,
+		String resourceRefId
+	) throws NotFoundException {
+		boolean admitted = this.lightOperations.acquire();
+		QueryTrace trace = QueryTrace.begin("restoreResourceRef", this.slowCallThreshold);
+		try {
+			snapshots.beginWrite(compId);
+			PersistenceManager pm = this.getPersistenceManager();
+			org.opencrx.kernel.activity1.jmi1.Segment activitySegment = this.getActivitySegment();
+			Activity project = this.findActivity(activitySegment, projId);
+			if(project == null || Boolean.TRUE.equals(project.isDisabled())) {
+				throw new NotFoundException("no project with ID <" + projId + "> found.");
+			}
+			ActivityTracker archiveTracker = this.findArchiveTracker(activitySegment, compId, false);
+			Activity archivedResourceRefs = archiveTracker == null ? null : this.findArchivedResourceRefs(archiveTracker, false);
+			ResourceAssignment resourceAssignment = archivedResourceRefs == null ? null : this.findResourceAssignment(archivedResourceRefs, resourceRefId);
+			if(resourceAssignment == null || !projId.equals(resourceAssignment.getDescription())) {
+				throw new NotFoundException("no archived resource ref with ID <" + resourceRefId + "> found.");
+			}
+			ResourceRefModel _resourceRef = null;
+			try {
+				pm.currentTransaction().begin();
+				ResourceAssignment restored = this.moveResourceAssignment(resourceAssignment, project, false, null);
+				pm.currentTransaction().commit();
+				_resourceRef = this.mapToResourceRef(restored);
+				this.onResourceRefsChanged(compId, projId, 1);
+			} catch(Exception e) {
+				new ServiceException(e).log();
+				try {
+					pm.currentTransaction().rollback();
+				} catch(Exception ignore) {}
+				throw new InternalServerErrorException(e.getMessage());
+			}
+			logger.info("restoreResourceRef(" + compId + ", " + projId + ", " + resourceRefId + ") -> " + _resourceRef);
+			return _resourceRef;
+		} finally {
+			snapshots.endWrite(compId);
+			QueryTrace.end(trace);
+			this.lightOperations.release(admitted);
 		}
 	}
 }
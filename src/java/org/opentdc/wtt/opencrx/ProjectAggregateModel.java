@@ -0,0 +1,98 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.opencrx;
+
+/**
+ * Aggregate counts of a company or project node. Direct counts refer to
+ * the node's immediate subprojects and resources, total counts include the
+ * whole hierarchy beneath the node.
+ *
+ */
+public class ProjectAggregateModel {
+
+	private String id;
+	private String parentId;
+	private int subprojects;
+	private int totalSubprojects;
+	private int resources;
+	private int totalResources;
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public String getParentId() {
+		return parentId;
+	}
+
+	public void setParentId(String parentId) {
+		this.parentId = parentId;
+	}
+
+	public int getSubprojects() {
+		return subprojects;
+	}
+
+	public void setSubprojects(int subprojects) {
+		this.subprojects = subprojects;
+	}
+
+	public int getTotalSubprojects() {
+		return totalSubprojects;
+	}
+
+	public void setTotalSubprojects(int totalSubprojects) {
+		this.totalSubprojects = totalSubprojects;
+	}
+
+	public int getResources() {
+		return resources;
+	}
+
+	public void setResources(int resources) {
+		this.resources = resources;
+	}
+
+	public int getTotalResources() {
+		return totalResources;
+	}
+
+	public void setTotalResources(int totalResources) {
+		this.totalResources = totalResources;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ProjectAggregateModel [id=" + id + ", parentId=" + parentId
+			+ ", subprojects=" + subprojects + "/" + totalSubprojects
+			+ ", resources=" + resources + "/" + totalResources + "]";
+	}
+}
@@ -0,0 +1,222 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.opencrx;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Records the backend accesses made during one ServiceProvider call. The
+ * trace is bound to the calling thread and dumped to the log when the call
+ * takes longer than the slow-call threshold. Nested calls are recorded in
+ * the trace of the outermost call.
+ *
+ */
+class QueryTrace {
+
+	private static final Logger logger = Logger.getLogger(QueryTrace.class.getName());
+	private static final ThreadLocal<QueryTrace> current = new ThreadLocal<QueryTrace>();
+	private static final int MAX_CALLS = 200;
+
+	private static class Access {
+		int calls;
+		long nanos;
+		long objects;
+	}
+
+	private final String operation;
+	private final long threshold;
+	private final long startedAt;
+	private final Map<String,Access> accesses = new LinkedHashMap<String,Access>();
+	private final List<String> calls = new ArrayList<String>();
+	private int totalCalls = 0;
+
+	private QueryTrace(
+		String operation,
+		long threshold
+	) {
+		this.operation = operation;
+		this.threshold = threshold;
+		this.startedAt = System.nanoTime();
+	}
+
+	/**
+	 * Begin trace for the current thread.
+	 * 
+	 * @param operation
+	 * @param threshold slow-call threshold in milliseconds, negative disables tracing
+	 * @return the trace or null if tracing is disabled or a trace is already active
+	 */
+	public static QueryTrace begin(
+		String operation,
+		long threshold
+	) {
+		if(threshold < 0 || current.get() != null) {
+			return null;
+		}
+		QueryTrace trace = new QueryTrace(operation, threshold);
+		current.set(trace);
+		return trace;
+	}
+
+	/**
+	 * End trace started with begin() and log it if the call was slow.
+	 * 
+	 * @param trace the value returned by begin()
+	 */
+	public static void end(
+		QueryTrace trace
+	) {
+		if(trace == null) {
+			return;
+		}
+		current.remove();
+		long elapsed = (System.nanoTime() - trace.startedAt) / 1000000L;
+		if(elapsed >= trace.threshold) {
+			logger.warning(trace.dump(elapsed));
+		}
+	}
+
+	/**
+	 * Start timing a backend access.
+	 * 
+	 * @return start time or 0 if no trace is active
+	 */
+	public static long start(
+	) {
+		return current.get() == null ? 0L : System.nanoTime();
+	}
+
+	/**
+	 * Record a backend access started with start().
+	 * 
+	 * @param access
+	 * @param startedAt
+	 * @param objects number of objects retrieved
+	 */
+	public static void record(
+		String access,
+		long startedAt,
+		long objects
+	) {
+		QueryTrace trace = current.get();
+		if(trace != null) {
+			trace.add(access, System.nanoTime() - startedAt, objects);
+		}
+	}
+
+	/**
+	 * Fetch a page of a backend result list and record it as one access
+	 * started with start(). openMDX result lists are lazy, i.e. the
+	 * objects are only retrieved while iterating. The recorded time
+	 * therefore covers the iteration, not just the creation of the list.
+	 * At least one object is fetched if available.
+	 * 
+	 * @param access
+	 * @param startedAt
+	 * @param objects
+	 * @param position index of the first object
+	 * @param size maximum number of objects
+	 * @return the fetched objects
+	 */
+	public static <T> List<T> fetch(
+		String access,
+		long startedAt,
+		List<T> objects,
+		int position,
+		int size
+	) {
+		List<T> page = new ArrayList<T>();
+		for(Iterator<T> i = objects.listIterator(position); i.hasNext(); ) {
+			page.add(i.next());
+			if(page.size() >= size) break;
+		}
+		record(access, startedAt, page.size());
+		return page;
+	}
+
+	/**
+	 * Fetch all objects of a backend result list, see fetch(access, startedAt, objects, position, size).
+	 * 
+	 * @param access
+	 * @param startedAt
+	 * @param objects
+	 * @return the fetched objects
+	 */
+	public static <T> List<T> fetch(
+		String access,
+		long startedAt,
+		List<T> objects
+	) {
+		return fetch(access, startedAt, objects, 0, Integer.MAX_VALUE);
+	}
+
+	private void add(
+		String access,
+		long nanos,
+		long objects
+	) {
+		Access summary = this.accesses.get(access);
+		if(summary == null) {
+			summary = new Access();
+			this.accesses.put(access, summary);
+		}
+		summary.calls++;
+		summary.nanos += nanos;
+		summary.objects += objects;
+		this.totalCalls++;
+		if(this.calls.size() < MAX_CALLS) {
+			this.calls.add(
+				String.format("  +%.3fms %s %.3fms %d objects",
+					(System.nanoTime() - this.startedAt - nanos) / 1000000.0,
+					access,
+					nanos / 1000000.0,
+					objects
+				)
+			);
+		}
+	}
+
+	private String dump(
+		long elapsed
+	) {
+		StringBuilder dump = new StringBuilder();
+		dump.append("slow call ").append(this.operation).append(" took ").append(elapsed).append("ms with ").append(this.totalCalls).append(" backend accesses\n");
+		for(Map.Entry<String,Access> entry: this.accesses.entrySet()) {
+			Access summary = entry.getValue();
+			dump.append(String.format("  %-32s %6d calls %10.3fms %8d objects%n", entry.getKey(), summary.calls, summary.nanos / 1000000.0, summary.objects));
+		}
+		for(String call: this.calls) {
+			dump.append(call).append('\n');
+		}
+		if(this.totalCalls > this.calls.size()) {
+			dump.append("  ... ").append(this.totalCalls - this.calls.size()).append(" more\n");
+		}
+		return dump.toString();
+	}
+}
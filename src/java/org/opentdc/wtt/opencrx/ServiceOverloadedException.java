@@ -0,0 +1,62 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.opencrx;
+
+import javax.ws.rs.ServiceUnavailableException;
+
+/**
+ * Thrown when a request is rejected by admission control. JAX-RS maps it
+ * to 503 Service Unavailable with a Retry-After header telling the client
+ * after how many seconds it should retry.
+ *
+ */
+public class ServiceOverloadedException extends ServiceUnavailableException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int retryAfter;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param message
+	 * @param retryAfter in seconds
+	 */
+	public ServiceOverloadedException(
+		String message,
+		int retryAfter
+	) {
+		super(message + " Retry after " + retryAfter + " seconds.", Long.valueOf(retryAfter));
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * Get retry-after hint.
+	 * 
+	 * @return seconds
+	 */
+	public int getRetryAfter() {
+		return this.retryAfter;
+	}
+}
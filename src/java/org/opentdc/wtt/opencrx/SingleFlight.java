@@ -0,0 +1,120 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.opencrx;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.opentdc.service.exception.InternalServerErrorException;
+
+/**
+ * Coalesces concurrent identical requests. The first caller for a key
+ * executes the loader, callers arriving while it is in flight wait for
+ * and share its result (or its exception). Waiting callers hold no
+ * bulkhead permit, so they wait at most timeout milliseconds and are then
+ * rejected like callers which do not get a permit.
+ *
+ */
+class SingleFlight {
+
+	private final ConcurrentMap<String,FutureTask<?>> inFlight = new ConcurrentHashMap<String,FutureTask<?>>();
+	private final long timeout;
+	private final int retryAfter;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param timeout in milliseconds
+	 * @param retryAfter in seconds
+	 */
+	public SingleFlight(
+		long timeout,
+		int retryAfter
+	) {
+		this.timeout = timeout;
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * Execute loader unless an identical request is in flight.
+	 * 
+	 * @param key operation and arguments
+	 * @param loader
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T execute(
+		String key,
+		Callable<T> loader
+	) {
+		FutureTask<T> task = new FutureTask<T>(loader);
+		FutureTask<?> existing = this.inFlight.putIfAbsent(key, task);
+		if(existing == null) {
+			try {
+				task.run();
+			} finally {
+				this.inFlight.remove(key, task);
+			}
+			return this.get(task, 0L);
+		} else {
+			return (T)this.get(existing, this.timeout);
+		}
+	}
+
+	/**
+	 * Get result of task and rethrow its exception.
+	 * 
+	 * @param task
+	 * @param timeout in milliseconds, 0 for a task which is done
+	 * @return
+	 * @throws ServiceOverloadedException if the task is not done in time
+	 */
+	private <T> T get(
+		FutureTask<T> task,
+		long timeout
+	) throws ServiceOverloadedException {
+		try {
+			return task.get(timeout, TimeUnit.MILLISECONDS);
+		} catch(TimeoutException e) {
+			throw new ServiceOverloadedException("in-flight request timed out.", this.retryAfter);
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			} else if(cause instanceof Error) {
+				throw (Error)cause;
+			} else {
+				throw new InternalServerErrorException(cause.getMessage());
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalServerErrorException(e.getMessage());
+		}
+	}
+}
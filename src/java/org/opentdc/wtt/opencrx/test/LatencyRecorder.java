@@ -0,0 +1,156 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.opencrx.test;
+
+/**
+ * Records latencies of one operation in a fixed-size log-linear histogram,
+ * so that long runs do not add allocation and GC pressure of their own.
+ * Each power of two is split into SUB_BUCKETS buckets, i.e. percentiles
+ * are accurate to about 3%.
+ *
+ */
+public class LatencyRecorder {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final String operation;
+	private final long[] buckets = new long[SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * SUB_BUCKETS];
+	private long count = 0;
+	private long errors = 0;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param operation
+	 */
+	public LatencyRecorder(
+		String operation
+	) {
+		this.operation = operation;
+	}
+
+	/**
+	 * Get bucket of a value. Values below SUB_BUCKETS have a bucket of their
+	 * own, larger values share a bucket with the values having the same
+	 * exponent and the same SUB_BUCKET_BITS most significant bits.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	private static int getBucket(
+		long value
+	) {
+		if(value < SUB_BUCKETS) {
+			return (int)Math.max(0, value);
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+		return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Get largest value of a bucket.
+	 * 
+	 * @param bucket
+	 * @return
+	 */
+	private static long getUpperBound(
+		int bucket
+	) {
+		if(bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+	}
+
+	/**
+	 * Record a completed call.
+	 * 
+	 * @param nanos
+	 * @param failed
+	 */
+	public synchronized void record(
+		long nanos,
+		boolean failed
+	) {
+		this.buckets[getBucket(nanos)]++;
+		this.count++;
+		if(failed) {
+			this.errors++;
+		}
+	}
+
+	/**
+	 * Get operation name.
+	 * 
+	 * @return
+	 */
+	public String getOperation() {
+		return this.operation;
+	}
+
+	/**
+	 * Get number of recorded calls.
+	 * 
+	 * @return
+	 */
+	public synchronized long getCount() {
+		return this.count;
+	}
+
+	/**
+	 * Get number of failed calls.
+	 * 
+	 * @return
+	 */
+	public synchronized long getErrors() {
+		return this.errors;
+	}
+
+	/**
+	 * Get percentile in milliseconds.
+	 * 
+	 * @param percentile e.g. 99.9
+	 * @return
+	 */
+	public synchronized double getPercentile(
+		double percentile
+	) {
+		if(this.count == 0) {
+			return 0.0;
+		}
+		long rank = Math.max(1L, (long)Math.ceil(percentile / 100.0 * this.count));
+		long seen = 0;
+		for(int i = 0; i < this.buckets.length; i++) {
+			seen += this.buckets[i];
+			if(seen >= rank) {
+				return getUpperBound(i) / 1000000.0;
+			}
+		}
+		return getUpperBound(this.buckets.length - 1) / 1000000.0;
+	}
+}
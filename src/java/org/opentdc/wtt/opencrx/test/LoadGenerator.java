@@ -0,0 +1,349 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.opencrx.test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.opentdc.wtt.CompanyModel;
+import org.opentdc.wtt.ProjectModel;
+import org.opentdc.wtt.ResourceRefModel;
+import org.opentdc.wtt.ServiceProvider;
+
+/**
+ * Drives a wtt ServiceProvider in-process with a synthetic operation mix or
+ * by replaying a recorded trace.
+ * 
+ * A trace has one call per line: offset in milliseconds since start,
+ * operation, company ID and, for project operations, project ID, separated
+ * by tabs. Lines starting with # are ignored.
+ *
+ */
+public class LoadGenerator {
+
+	private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+
+	public static final String OP_LIST_PROJECTS = "listProjects";
+	public static final String OP_READ_AS_TREE = "readAsTree";
+	public static final String OP_UPDATE_PROJECT = "updateProject";
+	public static final String OP_ADD_RESOURCE_REF = "addResourceRef";
+
+	private final ServiceProvider serviceProvider;
+	private final Map<String,Integer> mix = new LinkedHashMap<String,Integer>();
+	private final Map<String,LatencyRecorder> recorders = new LinkedHashMap<String,LatencyRecorder>();
+	private final List<String> tenants = new ArrayList<String>();
+	private final Map<String,List<String>> projects = new LinkedHashMap<String,List<String>>();
+	private int tenantCount = 10;
+	private int concurrency = 8;
+	private String resourceId = null;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param serviceProvider
+	 */
+	public LoadGenerator(
+		ServiceProvider serviceProvider
+	) {
+		this.serviceProvider = serviceProvider;
+		this.mix.put(OP_LIST_PROJECTS, 50);
+		this.mix.put(OP_READ_AS_TREE, 30);
+		this.mix.put(OP_UPDATE_PROJECT, 15);
+		this.mix.put(OP_ADD_RESOURCE_REF, 5);
+		for(String operation: this.mix.keySet()) {
+			this.recorders.put(operation, new LatencyRecorder(operation));
+		}
+	}
+
+	/**
+	 * Set operation mix, e.g. listProjects=50,readAsTree=30,updateProject=15,addResourceRef=5.
+	 * 
+	 * @param mix
+	 */
+	public void setMix(
+		String mix
+	) {
+		Map<String,Integer> weights = new LinkedHashMap<String,Integer>();
+		for(String entry: mix.split(",")) {
+			String[] weight = entry.split("=");
+			if(weight.length != 2 || !this.recorders.containsKey(weight[0].trim())) {
+				throw new IllegalArgumentException("invalid operation mix entry <" + entry + ">");
+			}
+			weights.put(weight[0].trim(), Integer.valueOf(weight[1].trim()));
+		}
+		this.mix.clear();
+		this.mix.putAll(weights);
+	}
+
+	/**
+	 * Set number of companies the load is spread over.
+	 * 
+	 * @param tenantCount
+	 */
+	public void setTenantCount(
+		int tenantCount
+	) {
+		this.tenantCount = tenantCount;
+	}
+
+	/**
+	 * Set number of concurrent callers.
+	 * 
+	 * @param concurrency
+	 */
+	public void setConcurrency(
+		int concurrency
+	) {
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * Set resource assigned by addResourceRef. addResourceRef is refused
+	 * without a resource.
+	 * 
+	 * @param resourceId
+	 */
+	public void setResourceId(
+		String resourceId
+	) {
+		this.resourceId = resourceId;
+	}
+
+	/**
+	 * Load the companies and projects the synthetic workload runs against.
+	 */
+	protected void prepare(
+	) {
+		this.tenants.clear();
+		this.projects.clear();
+		for(CompanyModel company: this.serviceProvider.listCompanies(null, null, 0, this.tenantCount)) {
+			List<String> projIds = new ArrayList<String>();
+			for(ProjectModel project: this.serviceProvider.listProjects(company.getId(), null, null, 0, Integer.MAX_VALUE)) {
+				projIds.add(project.getId());
+			}
+			this.tenants.add(company.getId());
+			this.projects.put(company.getId(), projIds);
+		}
+		if(this.tenants.isEmpty()) {
+			throw new IllegalStateException("no companies found to run the workload against.");
+		}
+		logger.info("prepare() -> " + this.tenants.size() + " tenants");
+	}
+
+	/**
+	 * Run the synthetic operation mix.
+	 * 
+	 * @param durationSeconds
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public LoadReport run(
+		int durationSeconds
+	) throws InterruptedException {
+		Integer addResourceRefs = this.mix.get(OP_ADD_RESOURCE_REF);
+		if(this.resourceId == null && addResourceRefs != null && addResourceRefs > 0) {
+			throw new IllegalStateException(OP_ADD_RESOURCE_REF + " requires a resourceId.");
+		}
+		this.prepare();
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+		LoadReport report = new LoadReport(this.recorders.values());
+		ExecutorService callers = Executors.newFixedThreadPool(this.concurrency);
+		report.start();
+		for(int i = 0; i < this.concurrency; i++) {
+			callers.execute(
+				new Runnable() {
+					@Override
+					public void run() {
+						ThreadLocalRandom random = ThreadLocalRandom.current();
+						while(System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+							String compId = tenants.get(random.nextInt(tenants.size()));
+							List<String> projIds = projects.get(compId);
+							String projId = projIds.isEmpty() ? null : projIds.get(random.nextInt(projIds.size()));
+							execute(nextOperation(random), compId, projId, System.nanoTime());
+						}
+					}
+				}
+			);
+		}
+		callers.shutdown();
+		if(!callers.awaitTermination(durationSeconds + 60L, TimeUnit.SECONDS)) {
+			callers.shutdownNow();
+		}
+		report.stop();
+		return report;
+	}
+
+	/**
+	 * Replay a recorded trace.
+	 * 
+	 * @param trace
+	 * @param speed replay speed, 1.0 replays in recorded time
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public LoadReport replay(
+		Reader trace,
+		double speed
+	) throws IOException, InterruptedException {
+		BufferedReader reader = new BufferedReader(trace);
+		LoadReport report = new LoadReport(this.recorders.values());
+		ThreadPoolExecutor callers = new ThreadPoolExecutor(
+			this.concurrency,
+			this.concurrency,
+			0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(this.concurrency * 16),
+			new ThreadPoolExecutor.CallerRunsPolicy()
+		);
+		report.start();
+		long startedAt = System.nanoTime();
+		boolean completed = false;
+		try {
+			String line = null;
+			while((line = reader.readLine()) != null) {
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				final String[] call = line.split("\t");
+				long offset = -1L;
+				if(call.length >= 3 && this.recorders.containsKey(call[1])) {
+					try {
+						offset = Long.parseLong(call[0].trim());
+					} catch(NumberFormatException ignore) {}
+				}
+				if(offset < 0) {
+					logger.warning("replay() ignores invalid trace line <" + line + ">");
+					continue;
+				}
+				// Latency is measured from the scheduled time so that a saturated
+				// provider does not hide its queueing delay
+				final long scheduledAt = startedAt + (long)(TimeUnit.MILLISECONDS.toNanos(offset) / speed);
+				long delay = scheduledAt - System.nanoTime();
+				if(delay > 0) {
+					TimeUnit.NANOSECONDS.sleep(delay);
+				}
+				callers.execute(
+					new Runnable() {
+						@Override
+						public void run() {
+							execute(call[1], call[2], call.length > 3 ? call[3] : null, scheduledAt);
+						}
+					}
+				);
+			}
+			completed = true;
+		} finally {
+			if(completed) {
+				callers.shutdown();
+				callers.awaitTermination(1L, TimeUnit.HOURS);
+			} else {
+				callers.shutdownNow();
+			}
+		}
+		report.stop();
+		return report;
+	}
+
+	/**
+	 * Pick next operation according to the mix.
+	 * 
+	 * @param random
+	 * @return
+	 */
+	protected String nextOperation(
+		ThreadLocalRandom random
+	) {
+		int total = 0;
+		for(Integer weight: this.mix.values()) {
+			total += weight;
+		}
+		int pick = random.nextInt(total);
+		for(Map.Entry<String,Integer> weight: this.mix.entrySet()) {
+			pick -= weight.getValue();
+			if(pick < 0) {
+				return weight.getKey();
+			}
+		}
+		return OP_LIST_PROJECTS;
+	}
+
+	/**
+	 * Execute and record a call. Project operations fall back to listProjects
+	 * for companies without projects.
+	 * 
+	 * @param operation
+	 * @param compId
+	 * @param projId
+	 * @param startedAt
+	 */
+	protected void execute(
+		String operation,
+		String compId,
+		String projId,
+		long startedAt
+	) {
+		if(projId == null && (OP_UPDATE_PROJECT.equals(operation) || OP_ADD_RESOURCE_REF.equals(operation))) {
+			operation = OP_LIST_PROJECTS;
+		}
+		boolean failed = false;
+		try {
+			if(OP_LIST_PROJECTS.equals(operation)) {
+				this.serviceProvider.listProjects(compId, null, null, 0, Integer.MAX_VALUE);
+			} else if(OP_READ_AS_TREE.equals(operation)) {
+				this.serviceProvider.readAsTree(compId);
+			} else if(OP_UPDATE_PROJECT.equals(operation)) {
+				ProjectModel project = this.serviceProvider.readProject(compId, projId);
+				project.setDescription("load test " + System.currentTimeMillis());
+				this.serviceProvider.updateProject(null, compId, projId, project);
+			} else if(OP_ADD_RESOURCE_REF.equals(operation)) {
+				// Never create assignments without resource in the datastore
+				if(this.resourceId == null) {
+					throw new IllegalStateException(OP_ADD_RESOURCE_REF + " requires a resourceId.");
+				}
+				ResourceRefModel resourceRef = new ResourceRefModel();
+				resourceRef.setResourceId(this.resourceId);
+				resourceRef.setResourceName("load test");
+				this.serviceProvider.addResourceRef(null, compId, projId, resourceRef);
+			}
+		} catch(Exception e) {
+			failed = true;
+			logger.log(Level.FINE, operation + "(" + compId + ", " + projId + ") failed", e);
+		}
+		this.recorders.get(operation).record(System.nanoTime() - startedAt, failed);
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.opencrx.test;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * Throughput, latency percentiles per operation and GC pressure of a load run.
+ *
+ */
+public class LoadReport {
+
+	private final Collection<LatencyRecorder> recorders;
+	private long startedAt;
+	private long elapsed;
+	private long gcCount;
+	private long gcTime;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param recorders
+	 */
+	public LoadReport(
+		Collection<LatencyRecorder> recorders
+	) {
+		this.recorders = recorders;
+	}
+
+	/**
+	 * Start measuring.
+	 */
+	public void start(
+	) {
+		this.gcCount = -getGcCount();
+		this.gcTime = -getGcTime();
+		this.startedAt = System.nanoTime();
+	}
+
+	/**
+	 * Stop measuring.
+	 */
+	public void stop(
+	) {
+		this.elapsed = System.nanoTime() - this.startedAt;
+		this.gcCount += getGcCount();
+		this.gcTime += getGcTime();
+	}
+
+	/**
+	 * Get number of collections of all collectors.
+	 * 
+	 * @return
+	 */
+	private static long getGcCount(
+	) {
+		long count = 0;
+		for(GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	/**
+	 * Get accumulated collection time of all collectors in milliseconds.
+	 * 
+	 * @return
+	 */
+	private static long getGcTime(
+	) {
+		long time = 0;
+		for(GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += Math.max(0, gc.getCollectionTime());
+		}
+		return time;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString(
+	) {
+		double seconds = this.elapsed / 1000000000.0;
+		StringBuilder report = new StringBuilder();
+		report.append(String.format(Locale.US, "%-16s %10s %8s %10s %10s %10s %10s%n", "operation", "calls", "errors", "ops/s", "p50 ms", "p99 ms", "p999 ms"));
+		long total = 0;
+		for(LatencyRecorder recorder: this.recorders) {
+			total += recorder.getCount();
+			report.append(String.format(Locale.US, "%-16s %10d %8d %10.1f %10.2f %10.2f %10.2f%n",
+				recorder.getOperation(),
+				recorder.getCount(),
+				recorder.getErrors(),
+				seconds > 0 ? recorder.getCount() / seconds : 0.0,
+				recorder.getPercentile(50.0),
+				recorder.getPercentile(99.0),
+				recorder.getPercentile(99.9)
+			));
+		}
+		report.append(String.format(Locale.US, "total %d calls in %.1f s (%.1f ops/s)%n", total, seconds, seconds > 0 ? total / seconds : 0.0));
+		report.append(String.format(Locale.US, "gc %d collections, %d ms (%.1f%% of elapsed)%n", this.gcCount, this.gcTime, seconds > 0 ? this.gcTime / (seconds * 10.0) : 0.0));
+		return report.toString();
+	}
+}
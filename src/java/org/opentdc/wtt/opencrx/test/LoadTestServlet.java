@@ -0,0 +1,153 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.opencrx.test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opentdc.wtt.opencrx.OpencrxServiceProvider;
+
+/**
+ * Runs the LoadGenerator against an OpencrxServiceProvider created from this
+ * servlet's context, i.e. against the openCRX datastore of the test
+ * deployment. The load test modifies data, therefore it only runs if the
+ * context init parameter wtt.loadtest.enabled is true and only on POST.
+ * mode=mix (default) runs the synthetic mix, mode=replay replays the trace
+ * sent as request body. The report is returned as text/plain.
+ * 
+ * Parameters: mode, tenants, concurrency, duration (seconds), mix,
+ * resourceId (required for addResourceRef), speed (replay only), prefix
+ * (provider prefix, default wtt).
+ *
+ */
+public class LoadTestServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String ENABLED_PARAMETER = "wtt.loadtest.enabled";
+
+	/**
+	 * Create service provider for one load test run. The caller must shut
+	 * it down after the run.
+	 * 
+	 * @param req
+	 * @return
+	 * @throws ServletException
+	 */
+	protected OpencrxServiceProvider newServiceProvider(
+		HttpServletRequest req
+	) throws ServletException {
+		try {
+			return new OpencrxServiceProvider(
+				this.getServletContext(),
+				getParameter(req, "prefix", "wtt")
+			);
+		} catch(Exception e) {
+			throw new ServletException(e);
+		}
+	}
+
+	/**
+	 * Create load generator configured from request parameters.
+	 * 
+	 * @param req
+	 * @param serviceProvider
+	 * @return
+	 */
+	protected LoadGenerator newLoadGenerator(
+		HttpServletRequest req,
+		OpencrxServiceProvider serviceProvider
+	) {
+		LoadGenerator loadGenerator = new LoadGenerator(serviceProvider);
+		loadGenerator.setTenantCount(Integer.parseInt(getParameter(req, "tenants", "10")));
+		loadGenerator.setConcurrency(Integer.parseInt(getParameter(req, "concurrency", "8")));
+		loadGenerator.setResourceId(req.getParameter("resourceId"));
+		if(req.getParameter("mix") != null) {
+			loadGenerator.setMix(req.getParameter("mix"));
+		}
+		return loadGenerator;
+	}
+
+	/**
+	 * Get request parameter.
+	 * 
+	 * @param req
+	 * @param name
+	 * @param defaultValue
+	 * @return
+	 */
+	protected static String getParameter(
+		HttpServletRequest req,
+		String name,
+		String defaultValue
+	) {
+		String value = req.getParameter(name);
+		return value == null || value.isEmpty() ? defaultValue : value;
+	}
+
+	/* (non-Javadoc)
+	 * @see javax.servlet.http.HttpServlet#doPost(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+	 */
+	@Override
+	protected void doPost(
+		HttpServletRequest req,
+		HttpServletResponse resp
+	) throws ServletException, IOException {
+		if(!Boolean.parseBoolean(this.getServletContext().getInitParameter(ENABLED_PARAMETER))) {
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN, "load test is disabled, set " + ENABLED_PARAMETER + " to enable it.");
+			return;
+		}
+		String mode = getParameter(req, "mode", "mix");
+		if(!"mix".equals(mode) && !"replay".equals(mode)) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "invalid mode <" + mode + ">");
+			return;
+		}
+		OpencrxServiceProvider serviceProvider = this.newServiceProvider(req);
+		Reader trace = new InputStreamReader(req.getInputStream(), "UTF-8");
+		try {
+			LoadGenerator loadGenerator = this.newLoadGenerator(req, serviceProvider);
+			LoadReport report = "replay".equals(mode)
+				? loadGenerator.replay(trace, Double.parseDouble(getParameter(req, "speed", "1.0")))
+				: loadGenerator.run(Integer.parseInt(getParameter(req, "duration", "60")));
+			resp.setContentType("text/plain");
+			resp.getWriter().print(report);
+		} catch(IllegalArgumentException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+		} catch(IllegalStateException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServletException(e);
+		} finally {
+			trace.close();
+			serviceProvider.shutdown();
+		}
+	}
+}
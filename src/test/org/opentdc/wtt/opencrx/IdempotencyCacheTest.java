@@ -0,0 +1,115 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.opencrx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.opentdc.service.exception.ValidationException;
+
+/**
+ * Unit tests for IdempotencyCache.
+ *
+ */
+public class IdempotencyCacheTest {
+
+	private static final String PAYLOAD = IdempotencyCache.hash("payload");
+
+	private static void complete(
+		IdempotencyCache cache,
+		String key,
+		String value
+	) {
+		assertNull(cache.begin(key, PAYLOAD, String.class));
+		cache.end(key, value);
+	}
+
+	@Test
+	public void testReplayReturnsCreatedValue(
+	) {
+		IdempotencyCache cache = new IdempotencyCache(10, 60000L, 1000L);
+		complete(cache, "k1", "v1");
+		assertEquals("v1", cache.begin("k1", PAYLOAD, String.class));
+	}
+
+	@Test
+	public void testReplayAtCapacityKeepsEntries(
+	) {
+		IdempotencyCache cache = new IdempotencyCache(2, 60000L, 1000L);
+		complete(cache, "k1", "v1");
+		complete(cache, "k2", "v2");
+		assertEquals("v1", cache.begin("k1", PAYLOAD, String.class));
+		assertEquals("v2", cache.begin("k2", PAYLOAD, String.class));
+		complete(cache, "k3", "v3");
+		assertEquals("v2", cache.begin("k2", PAYLOAD, String.class));
+		assertEquals("v3", cache.begin("k3", PAYLOAD, String.class));
+	}
+
+	@Test
+	public void testNewKeyEvictsEldestCompletedEntry(
+	) {
+		IdempotencyCache cache = new IdempotencyCache(2, 60000L, 1000L);
+		complete(cache, "k1", "v1");
+		complete(cache, "k2", "v2");
+		complete(cache, "k3", "v3");
+		assertNull(cache.begin("k1", PAYLOAD, String.class));
+	}
+
+	@Test
+	public void testExpiredEntryIsExecutedAgain(
+	) {
+		IdempotencyCache cache = new IdempotencyCache(10, 0L, 1000L);
+		complete(cache, "k1", "v1");
+		assertNull(cache.begin("k1", PAYLOAD, String.class));
+	}
+
+	@Test
+	public void testFailedRequestIsExecutedAgain(
+	) {
+		IdempotencyCache cache = new IdempotencyCache(10, 60000L, 1000L);
+		complete(cache, "k1", null);
+		assertNull(cache.begin("k1", PAYLOAD, String.class));
+	}
+
+	@Test
+	public void testDifferentPayloadIsRejected(
+	) {
+		IdempotencyCache cache = new IdempotencyCache(10, 60000L, 1000L);
+		complete(cache, "k1", "v1");
+		try {
+			cache.begin("k1", IdempotencyCache.hash("other payload"), String.class);
+			fail("reused key with a different payload must be rejected");
+		} catch(ValidationException expected) {}
+	}
+
+	@Test
+	public void testNullKeyIsNotCached(
+	) {
+		IdempotencyCache cache = new IdempotencyCache(10, 60000L, 1000L);
+		complete(cache, null, "v1");
+		assertNull(cache.begin(null, PAYLOAD, String.class));
+	}
+}